@@ -0,0 +1,169 @@
+package zombie.limgr;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.BitSet;
+
+/**
+ * Hands out server IDs and ports.
+ * Keeps bitmaps of the IDs and ports in use (filled from the registry), so a new server
+ * needs no directory scan. Automatic ports are taken from [Limits] port-range in the config.ini
+ * and are checked to be free on the host before they are handed out.
+ */
+public class Allocator implements ServerRegistry.Listener {
+
+	/**
+	 * An ID and port reserved for a new server.
+	 */
+	public static class Allocation {
+		public final int id;
+		public final int port;
+
+		Allocation(int id, int port) {
+			this.id = id;
+			this.port = port;
+		}
+	}
+
+	private BitSet ids = new BitSet();
+	private BitSet ports = new BitSet(65536);
+	private int rangeMin = 25000;
+	private int rangeMax = 25999;
+
+	/**
+	 * @param range Port range for automatic assignment, e.g. "25000-25999"
+	 */
+	public Allocator(String range) {
+		try {
+			String[] r = range.split("-");
+			int min = Integer.parseInt(r[0].trim());
+			int max = Integer.parseInt(r[1].trim());
+			if(min < 1 || max > 65535 || min > max)
+				throw new NumberFormatException();
+			this.rangeMin = min;
+			this.rangeMax = max;
+		}catch (RuntimeException e) {
+			System.err.println("[!] Invalid port-range in config.ini ("+range+"). Use fallback: "+this.rangeMin+"-"+this.rangeMax);
+		}
+	}
+
+	/**
+	 * Marks all numeric names in the deployment directory as used IDs and the ports
+	 * of all registered servers as used ports. Called once on startup.
+	 * @param deploymentDir
+	 * @param registry
+	 */
+	public synchronized void init(File deploymentDir, ServerRegistry registry) {
+		String[] names = deploymentDir.list();
+		if(names != null)
+			for(String f : names) {
+				try {
+					this.ids.set(Integer.parseInt(f));
+				}catch (NumberFormatException | IndexOutOfBoundsException e) {
+					continue;
+				}
+			}
+		for(Server srv : registry)
+			this.onAdded(srv);
+	}
+
+	@Override
+	public synchronized void onAdded(Server srv) {
+		this.ids.set(srv.getID());
+		int port = parsePort(srv.getConfig().getPort());
+		if(port > 0)
+			this.ports.set(port);
+	}
+
+	@Override
+	public synchronized void onRemoved(Server srv) {
+		this.ids.clear(srv.getID());
+		this.release(parsePort(srv.getConfig().getPort()));
+	}
+
+	/**
+	 * Called when the port of a server has been changed in its config.
+	 * @param oldPort
+	 * @param newPort
+	 */
+	public synchronized void portChanged(String oldPort, String newPort) {
+		this.release(parsePort(oldPort));
+		int p = parsePort(newPort);
+		if(p > 0)
+			this.ports.set(p);
+	}
+
+	/**
+	 * Frees a port, unless another server still uses it.
+	 */
+	private void release(int port) {
+		if(port <= 0)
+			return;
+		for(Server s : Main.servers)
+			if(parsePort(s.getConfig().getPort()) == port)
+				return;
+		this.ports.clear(port);
+	}
+
+	/**
+	 * Reserves a new ID and a port.
+	 * @param port Desired port, 0 to choose a free one from the port range
+	 * @return NULL if the port is taken or there is no free port left in the range
+	 */
+	public synchronized Allocation allocate(int port) {
+		if(port > 0) {
+			if(port > 65535 || this.ports.get(port) || !isPortFree(port))
+				return null;
+		}else {
+			port = -1;
+			for(int p = this.ports.nextClearBit(this.rangeMin); p <= this.rangeMax; p = this.ports.nextClearBit(p + 1)) {
+				if(isPortFree(p)) {
+					port = p;
+					break;
+				}
+			}
+			if(port < 0)
+				return null;
+		}
+		int id = Math.max(1, this.ids.length()); //Highest ID + 1
+		this.ids.set(id);
+		this.ports.set(port);
+		return new Allocation(id, port);
+	}
+
+	/**
+	 * Gives back the port of an allocation that has not been used. (Server creation failed)
+	 * The ID stays taken, as its directory may already exist.
+	 * @param a
+	 */
+	public synchronized void free(Allocation a) {
+		this.release(a.port);
+	}
+
+	/**
+	 * @param port
+	 * @return true if nothing on this host is listening on the port.
+	 */
+	public static boolean isPortFree(int port) {
+		try (ServerSocket s = new ServerSocket()) {
+			s.setReuseAddress(true);
+			s.bind(new InetSocketAddress(port));
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static int parsePort(String s) {
+		if(s == null)
+			return -1;
+		try {
+			int p = Integer.parseInt(s.trim());
+			return p > 0 && p <= 65535 ? p : -1;
+		}catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
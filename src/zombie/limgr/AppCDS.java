@@ -0,0 +1,223 @@
+package zombie.limgr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Class data sharing archives per template, so the classes of the server.jar don't have to be
+ * loaded and verified from scratch on every start. Enabled with [AppCDS] enabled=true.
+ * The first start of a server of a template trains a dynamic archive (-XX:ArchiveClassesAtExit,
+ * written when the server is stopped), later starts use it with -XX:SharedArchiveFile.
+ * Archives are kept in templates/.cds/ and keyed by template, hash and modification time of the
+ * server.jar and JVM version, so an update of either trains a new one. The JVM rejects an archive
+ * if the mtime of the jar differs, so servers keep the mtime of the template when deployed.
+ * Needs JDK 13 or newer for the server.
+ */
+public class AppCDS {
+
+	/**
+	 * How a server has been launched.
+	 */
+	public static class Launch {
+		final String key;
+		final File archive;
+		final boolean training;
+
+		Launch(String key, File archive, boolean training) {
+			this.key = key;
+			this.archive = archive;
+			this.training = training;
+		}
+
+		File getTempFile() {
+			return new File(this.archive.getPath() + ".tmp");
+		}
+	}
+
+	private static final Pattern VERSION = Pattern.compile("version \"(1\\.)?(\\d+)[^\"]*\"");
+
+	private final boolean enabled;
+	private final File dir;
+	private final Map<String, String> jvmVersions = new HashMap<String, String>(); //java binary -> version
+	private final Map<String, String> jarHashes = new HashMap<String, String>(); //path:size:mtime -> hash
+	private final Set<String> training = Collections.synchronizedSet(new HashSet<String>());
+
+	public AppCDS(boolean enabled, File templatesDir) {
+		this.enabled = enabled;
+		this.dir = new File(templatesDir, ".cds");
+	}
+
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	/**
+	 * Adds the archive options to the command line of a server.
+	 * @param srv
+	 * @param cmd
+	 * @return The launch to pass to {@link #ready(Server, Launch, long)} / {@link #exited(Server, Launch, int)}, NULL if no archive is used
+	 */
+	public Launch prepare(Server srv, List<String> cmd) {
+		if(!this.enabled || cmd.isEmpty() || !new File(cmd.get(0)).getName().startsWith("java"))
+			return null;
+		String template = srv.getConfig().get("Template", "");
+		int jar = cmd.indexOf("-jar");
+		if(template.isEmpty() || jar < 0 || jar + 1 >= cmd.size())
+			return null;
+		File jarFile = new File(new File(srv.getDir(), "files"), cmd.get(jar + 1));
+		String version = this.getJvmVersion(cmd.get(0));
+		String hash = this.getJarHash(jarFile);
+		if(version == null || hash == null)
+			return null;
+
+		//The JVM compares size and mtime of the jar with the archive, the hash only covers the content
+		String key = template.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + hash + "-" + Long.toHexString(jarFile.lastModified() / 1000) + "-jdk" + version;
+		File archive = new File(this.dir, key + ".jsa");
+		if(archive.isFile()) {
+			cmd.add(1, "-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+			cmd.add(2, "-Xshare:auto");
+			return new Launch(key, archive, false);
+		}
+		if(!this.training.add(key))
+			return null; //Another server of this template is training
+		if(!this.dir.isDirectory() && !this.dir.mkdirs()) {
+			this.training.remove(key);
+			System.err.println("[!] Couldn't create the AppCDS directory "+this.dir.getPath());
+			return null;
+		}
+		Launch l = new Launch(key, archive, true);
+		l.getTempFile().delete();
+		cmd.add(1, "-XX:ArchiveClassesAtExit=" + l.getTempFile().getAbsolutePath());
+		System.out.println("[Server # "+srv.getID()+"] Training AppCDS archive "+key+" (written when the server stops).");
+		return l;
+	}
+
+	/**
+	 * The server has reached its ready state, records the startup time.
+	 * @param srv
+	 * @param l
+	 * @param millis Time to ready
+	 */
+	public void ready(Server srv, Launch l, long millis) {
+		String key = l.training ? "Startup-Time-NoCDS" : "Startup-Time-CDS";
+		srv.setConfig(key, Long.toString(millis));
+		String other = srv.getConfig().get(l.training ? "Startup-Time-CDS" : "Startup-Time-NoCDS");
+		System.out.println("[Server # "+srv.getID()+"] Startup "+(l.training ? "without" : "with")+" AppCDS archive: "+millis+"ms"
+				+(other != null ? " ("+(l.training ? "with" : "without")+": "+other+"ms)" : ""));
+	}
+
+	/**
+	 * The server has exited, keeps the trained archive if it has been written completely.
+	 * @param srv
+	 * @param l
+	 * @param exitCode
+	 */
+	public void exited(Server srv, Launch l, int exitCode) {
+		if(!l.training)
+			return;
+		File tmp = l.getTempFile();
+		if(exitCode == 0 && tmp.isFile() && tmp.length() > 0 && tmp.renameTo(l.archive))
+			System.out.println("[Server # "+srv.getID()+"] AppCDS archive "+l.key+" created. ("+ResourceSampler.formatBytes(l.archive.length())+")");
+		else
+			tmp.delete();
+		this.training.remove(l.key);
+	}
+
+	/**
+	 * @param java Path of the java binary
+	 * @return Major version and a hash of the full "java -version" output (vendor, build), NULL if older than 13 or unknown
+	 */
+	private String getJvmVersion(String java) {
+		synchronized (this.jvmVersions) {
+			if(this.jvmVersions.containsKey(java))
+				return this.jvmVersions.get(java);
+		}
+		String version = null;
+		try {
+			Process p = new ProcessBuilder(java, "-version").redirectErrorStream(true).start();
+			BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()));
+			StringBuilder out = new StringBuilder();
+			String line;
+			while((line = r.readLine()) != null)
+				out.append(line).append('\n');
+			p.waitFor(5, TimeUnit.SECONDS);
+			Matcher m = VERSION.matcher(out);
+			if(!m.find())
+				System.err.println("[!] Couldn't determine the version of "+java+".");
+			else if(Integer.parseInt(m.group(2)) < 13)
+				System.err.println("[!] AppCDS needs JDK 13 or newer ("+java+": "+m.group(0)+").");
+			else
+				version = m.group(2) + "-" + String.format("%08x", out.toString().hashCode());
+		} catch (IOException e) {
+			System.err.println("[!] Couldn't determine the version of "+java+": "+e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		synchronized (this.jvmVersions) {
+			this.jvmVersions.put(java, version);
+		}
+		return version;
+	}
+
+	/**
+	 * @param jar
+	 * @return First 16 hex digits of the SHA-256 of the file, NULL if not readable
+	 */
+	private String getJarHash(File jar) {
+		if(!jar.isFile())
+			return null;
+		String id = jar.getAbsolutePath()+":"+jar.length()+":"+jar.lastModified();
+		synchronized (this.jarHashes) {
+			if(this.jarHashes.containsKey(id))
+				return this.jarHashes.get(id);
+		}
+		try (InputStream in = new FileInputStream(jar)) {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] buf = new byte[65536];
+			int r;
+			while((r = in.read(buf)) > 0)
+				md.update(buf, 0, r);
+			StringBuilder sb = new StringBuilder();
+			for(byte b : Arrays.copyOf(md.digest(), 8))
+				sb.append(String.format("%02x", b));
+			synchronized (this.jarHashes) {
+				this.jarHashes.put(id, sb.toString());
+			}
+			return sb.toString();
+		} catch (IOException | NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return All archives, file names
+	 */
+	public List<String> getArchives() {
+		ArrayList<String> l = new ArrayList<String>();
+		String[] names = this.dir.list();
+		if(names != null)
+			for(String n : names)
+				if(n.endsWith(".jsa"))
+					l.add(n);
+		Collections.sort(l);
+		return l;
+	}
+}
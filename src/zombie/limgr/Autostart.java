@@ -0,0 +1,125 @@
+package zombie.limgr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts all servers with Autostart=true after the manager has started.
+ * At most [Autostart] parallel servers boot at the same time, starts are staggered by
+ * [Autostart] stagger seconds and servers with a higher Autostart-Priority go first.
+ * A server counts as booted once it is ready (see {@link Server#awaitReady(long)}), or after the timeout.
+ */
+public class Autostart implements Runnable {
+
+	private int parallel;
+	private long stagger;
+	private long timeout;
+
+	public Autostart() {
+		try {
+			this.parallel = Math.max(1, Integer.parseInt(Main.getSetting("Autostart", "parallel", "2")));
+			this.stagger = Math.max(0, Long.parseLong(Main.getSetting("Autostart", "stagger", "5")));
+			this.timeout = Math.max(1, Long.parseLong(Main.getSetting("Autostart", "timeout", "300")));
+		}catch (NumberFormatException e) {
+			System.err.println("[!] Invalid [Autostart] settings in config.ini. Use fallback: parallel=2, stagger=5, timeout=300");
+			this.parallel = 2;
+			this.stagger = 5;
+			this.timeout = 300;
+		}
+	}
+
+	/**
+	 * Runs the autostart in the background, if enabled in the config.ini
+	 */
+	public static void begin() {
+		if(!Main.getSetting("Autostart", "enabled", "true").equalsIgnoreCase("true")) {
+			System.out.println("Autostart: <DISABLED>");
+			return;
+		}
+		Thread t = new Thread(new Autostart(), "Autostart");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	@Override
+	public void run() {
+		ArrayList<Server> list = new ArrayList<Server>();
+		for(Server srv : Main.servers)
+			if(srv.getConfig().isAutostart())
+				list.add(srv);
+		if(list.isEmpty())
+			return;
+		Collections.sort(list, new Comparator<Server>() {
+			public int compare(Server a, Server b) {
+				int c = Integer.compare(b.getConfig().getInt("Autostart-Priority", 0), a.getConfig().getInt("Autostart-Priority", 0));
+				return c != 0 ? c : Integer.compare(a.getID(), b.getID());
+			}
+		});
+
+		System.out.println("[Autostart] Starting "+list.size()+" servers. ("+this.parallel+" at a time, "+this.stagger+"s apart)");
+		long begin = System.currentTimeMillis();
+		final Semaphore slots = new Semaphore(this.parallel);
+		ExecutorService pool = Executors.newFixedThreadPool(this.parallel);
+		try {
+			long last = 0;
+			for(final Server srv : list) {
+				slots.acquire();
+				long wait = last + this.stagger * 1000 - System.currentTimeMillis();
+				if(wait > 0)
+					Thread.sleep(wait);
+				last = System.currentTimeMillis();
+				pool.execute(new Runnable() {
+					public void run() {
+						try {
+							boot(srv);
+						}finally {
+							slots.release();
+						}
+					}
+				});
+			}
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			return;
+		}
+		System.out.println("[Autostart] Done after "+format(System.currentTimeMillis() - begin)+".");
+	}
+
+	/**
+	 * Starts a server and waits until it has booted.
+	 * @param srv
+	 */
+	private void boot(Server srv) {
+		try {
+			if(Main.pressure != null)
+				Main.pressure.defer("Autostart of server #"+srv.getID());
+			Server.StartResult r = srv.requestStart();
+			if(r == Server.StartResult.QUEUED) {
+				System.out.println("[Autostart] Server #"+srv.getID()+" is waiting for memory, continuing.");
+				return;
+			}else if(r != Server.StartResult.STARTED) {
+				System.err.println("[Autostart] [!] Server #"+srv.getID()+" could not be started. ("+r+")");
+				return;
+			}
+			if(srv.awaitReady(this.timeout * 1000))
+				System.out.println("[Autostart] Server #"+srv.getID()+" booted in "+format(srv.getTimeToReady())+".");
+			else if(srv.getState() == Server.State.STARTING)
+				System.err.println("[Autostart] [!] Server #"+srv.getID()+" not ready after "+this.timeout+"s, continuing.");
+			else
+				System.err.println("[Autostart] [!] Server #"+srv.getID()+" exited while booting.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static String format(long ms) {
+		return String.format("%.1fs", ms / 1000.0);
+	}
+}
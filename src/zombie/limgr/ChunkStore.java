@@ -0,0 +1,437 @@
+package zombie.limgr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Incremental backups ([Backup] format=chunks). Files are split into content-defined chunks
+ * (gear hash, [Backup] chunk-size KB on average), every chunk is stored once, deflated and named
+ * by its SHA-256, in the store: backups/.chunks of the server, or .chunks in the deployment
+ * directory for [Backup] chunk-store=host. A backup is a manifest (&lt;desc&gt;.manifest, gzipped
+ * text) listing size, modification time and chunks of every file. Files whose size and
+ * modification time match the previous manifest are not read again.
+ * Chunks no manifest refers to anymore are removed by {@link #gc()}.
+ */
+public class ChunkStore {
+
+	private static final String HEADER = "# LiMGR manifest 1";
+	private static final long[] GEAR = new long[256];
+	static {
+		Random r = new Random(0x4C694D4752L); //Fixed, the chunk boundaries must not change between runs
+		for(int i = 0; i < GEAR.length; i++)
+			GEAR[i] = r.nextLong();
+	}
+
+	private static final Map<String, Object> locks = new HashMap<String, Object>(); //Store directory -> lock
+
+	/**
+	 * A file of a manifest.
+	 */
+	public static class FileEntry {
+		public final String path;
+		public final long size;
+		public final long mtime;
+		public final List<String> chunks;
+
+		FileEntry(String path, long size, long mtime, List<String> chunks) {
+			this.path = path;
+			this.size = size;
+			this.mtime = mtime;
+			this.chunks = chunks;
+		}
+	}
+
+	private final File dir;
+	final Object lock; //Held while writing, restoring or collecting garbage
+	private final boolean host;
+	private final int min, avg, max;
+	private final long mask;
+	private final int level;
+
+	private ChunkStore(File dir, boolean host, int avg, int level) {
+		this.dir = dir;
+		this.host = host;
+		synchronized (locks) {
+			Object l = locks.get(dir.getAbsolutePath());
+			if(l == null)
+				locks.put(dir.getAbsolutePath(), l = new Object());
+			this.lock = l;
+		}
+		this.avg = Integer.highestOneBit(Math.max(4096, avg));
+		this.min = this.avg / 4;
+		this.max = this.avg * 4;
+		this.mask = -1L << (64 - Integer.numberOfTrailingZeros(this.avg)); //Top bits, they depend on the last 64 bytes
+		this.level = level;
+	}
+
+	/**
+	 * @param srv
+	 * @return The store the server uses according to the [Backup] settings
+	 */
+	public static ChunkStore forServer(Server srv) {
+		boolean host = Main.getSetting("Backup", "chunk-store", "server").equalsIgnoreCase("host");
+		File dir = host ? new File(Main.deploymentDir, ".chunks") : new File(new File(srv.getDir(), "backups"), ".chunks");
+		int avg = 256, level = 6;
+		try {
+			avg = Integer.parseInt(Main.getSetting("Backup", "chunk-size", "256"));
+			level = Integer.parseInt(Main.getSetting("Backup", "level", "6"));
+		}catch (NumberFormatException e) {
+			System.err.println("[!] Invalid [Backup] chunk-size / level in config.ini. Use fallback: 256 / 6");
+		}
+		return new ChunkStore(dir, host, avg * 1024, Math.max(0, Math.min(9, level)));
+	}
+
+	/**
+	 * @return true if backups are written as manifests, false for ZIP
+	 */
+	public static boolean isEnabled() {
+		return Main.getSetting("Backup", "format", "zip").equalsIgnoreCase("chunks");
+	}
+
+	private File chunkFile(String hash) {
+		return new File(new File(this.dir, hash.substring(0, 2)), hash);
+	}
+
+	/**
+	 * Backs up the content of a folder.
+	 * @param folder
+	 * @param manifest Manifest to be created
+	 * @param previous Last manifest of the server, NULL if none. Unchanged files are taken from it.
+	 * @return true if successful
+	 */
+	public boolean backup(File folder, File manifest, File previous) {
+		synchronized (this.lock) { //No GC meanwhile
+			Map<String, FileEntry> last = new HashMap<String, FileEntry>();
+			if(previous != null) {
+				try {
+					for(FileEntry e : readManifest(previous))
+						last.put(e.path, e);
+				}catch (IOException e) {
+					System.err.println("[!] Couldn't read the manifest "+previous.getName()+", all files are read. ("+e.getMessage()+")");
+				}
+			}
+			Stats stats = new Stats();
+			File tmp = new File(manifest.getPath()+".tmp");
+			try {
+				if(!this.dir.isDirectory() && !this.dir.mkdirs())
+					throw new IOException("Couldn't create "+this.dir.getPath());
+				MessageDigest sha = MessageDigest.getInstance("SHA-256");
+				try (Writer w = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(tmp)), StandardCharsets.UTF_8)) {
+					w.write(HEADER+"\n");
+					this.backupDir(folder, folder, last, w, sha, stats);
+				}
+				if(!tmp.renameTo(manifest))
+					throw new IOException("Couldn't rename "+tmp.getName());
+			}catch (IOException | NoSuchAlgorithmException e) {
+				System.err.println("[!] Error while creating the incremental backup. ("+e.getMessage()+")");
+				e.printStackTrace();
+				tmp.delete();
+				return false;
+			}
+			System.out.println("Backup: "+stats.files+" files ("+stats.unchanged+" unchanged), "+stats.newChunks+" new chunks ("
+					+ResourceSampler.formatBytes(stats.newBytes)+" -> "+ResourceSampler.formatBytes(stats.storedBytes)+"), "
+					+stats.reused+" chunks reused ("+ResourceSampler.formatBytes(stats.reusedBytes)+")");
+			return true;
+		}
+	}
+
+	private static class Stats {
+		int files, unchanged, newChunks, reused;
+		long newBytes, storedBytes, reusedBytes;
+	}
+
+	private void backupDir(File basedir, File dir, Map<String, FileEntry> last, Writer w, MessageDigest sha, Stats stats) throws IOException {
+		File[] files = dir.listFiles();
+		if(files == null)
+			throw new IOException("Couldn't list "+dir.getPath());
+		for(File f : files) {
+			if(f.isDirectory()) {
+				this.backupDir(basedir, f, last, w, sha, stats);
+				continue;
+			}
+			String path = basedir.toURI().relativize(f.toURI()).getPath();
+			if(path.indexOf('\n') >= 0 || path.indexOf('\r') >= 0) {
+				System.err.println("[!] Skipped file with line break in its name: "+path);
+				continue;
+			}
+			stats.files++;
+			long size = f.length(), mtime = f.lastModified();
+			FileEntry e = last.get(path);
+			if(e == null || e.size != size || e.mtime != mtime || !this.hasChunks(e)) {
+				e = this.store(f, path, sha, stats);
+			}else {
+				stats.unchanged++;
+				stats.reused += e.chunks.size();
+				stats.reusedBytes += e.size;
+			}
+			w.write(e.size+"\t"+e.mtime+"\t"+String.join(",", e.chunks)+"\t"+e.path+"\n");
+		}
+	}
+
+	private boolean hasChunks(FileEntry e) {
+		for(String c : e.chunks)
+			if(!this.chunkFile(c).isFile())
+				return false;
+		return true;
+	}
+
+	/**
+	 * Splits a file into chunks and stores the ones that are new.
+	 * @param stats NULL to only split, nothing is stored
+	 */
+	private FileEntry store(File f, String path, MessageDigest sha, Stats stats) throws IOException {
+		long mtime = f.lastModified(); //Before reading, a change while reading shows up next time
+		ArrayList<String> chunks = new ArrayList<String>();
+		long size = 0;
+		byte[] buf = new byte[this.max];
+		int len = 0;
+		try (InputStream in = new FileInputStream(f)) {
+			while(true) {
+				int r;
+				while(len < buf.length && (r = in.read(buf, len, buf.length - len)) >= 0)
+					len += r;
+				if(len == 0)
+					break;
+				int cut = this.cut(buf, len);
+				sha.reset();
+				sha.update(buf, 0, cut);
+				String hash = hex(sha.digest());
+				File c = this.chunkFile(hash);
+				if(stats != null) {
+					if(c.isFile()) {
+						stats.reused++;
+						stats.reusedBytes += cut;
+					}else {
+						stats.newChunks++;
+						stats.newBytes += cut;
+						stats.storedBytes += this.writeChunk(c, buf, cut);
+					}
+				}
+				chunks.add(hash);
+				size += cut;
+				System.arraycopy(buf, cut, buf, 0, len - cut);
+				len -= cut;
+			}
+		}
+		return new FileEntry(path, size, mtime, chunks);
+	}
+
+	/**
+	 * @return Length of the next chunk, a content-defined boundary between min and max
+	 */
+	private int cut(byte[] buf, int len) {
+		if(len <= this.min)
+			return len;
+		long hash = 0;
+		for(int i = this.min; i < len; i++) {
+			hash = (hash << 1) + GEAR[buf[i] & 0xFF];
+			if((hash & this.mask) == 0)
+				return i + 1;
+		}
+		return len; //max or end of file
+	}
+
+	/**
+	 * @return Stored size
+	 */
+	private long writeChunk(File c, byte[] buf, int len) throws IOException {
+		File parent = c.getParentFile();
+		if(!parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Couldn't create "+parent.getPath());
+		File tmp = new File(parent, c.getName()+".tmp");
+		Deflater d = new Deflater(this.level);
+		try (OutputStream out = new DeflaterOutputStream(new FileOutputStream(tmp), d, 65536)) {
+			out.write(buf, 0, len);
+		}finally {
+			d.end();
+		}
+		if(!tmp.renameTo(c)) {
+			tmp.delete();
+			throw new IOException("Couldn't rename "+tmp.getName());
+		}
+		return c.length();
+	}
+
+	/**
+	 * Writes the files of a manifest into a folder. Every chunk is checked against its hash.
+	 * @param manifest
+	 * @param folder
+	 * @return true if successful
+	 */
+	public boolean restore(File manifest, File folder) {
+		synchronized (this.lock) {
+			try {
+				MessageDigest sha = MessageDigest.getInstance("SHA-256");
+				for(FileEntry e : readManifest(manifest))
+					this.restoreFile(e, new File(folder, e.path), sha);
+				return true;
+			}catch (IOException | NoSuchAlgorithmException e) {
+				System.err.println("[!] Error while restoring the incremental backup "+manifest.getName()+". ("+e.getMessage()+")");
+				e.printStackTrace();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @param e
+	 * @param f
+	 * @param sha
+	 * @return true if the file consists of the chunks of the entry
+	 */
+	boolean matches(FileEntry e, File f, MessageDigest sha) throws IOException {
+		return f.length() == e.size && this.store(f, e.path, sha, null).chunks.equals(e.chunks);
+	}
+
+	void restoreFile(FileEntry e, File target, MessageDigest sha) throws IOException {
+		File parent = target.getParentFile();
+		if(!parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Couldn't create "+parent.getPath());
+		byte[] buf = new byte[65536];
+		try (OutputStream out = new FileOutputStream(target)) {
+			for(String hash : e.chunks) {
+				sha.reset();
+				try (InputStream in = new InflaterInputStream(new FileInputStream(this.chunkFile(hash)))) {
+					int r;
+					while((r = in.read(buf)) >= 0) {
+						sha.update(buf, 0, r);
+						out.write(buf, 0, r);
+					}
+				}
+				if(!hex(sha.digest()).equals(hash))
+					throw new IOException("Chunk "+hash+" of "+e.path+" is damaged");
+			}
+		}
+		target.setLastModified(e.mtime);
+	}
+
+	/**
+	 * Deletes all chunks no manifest of the store refers to.
+	 * @return Number of deleted chunks, -1 on error (nothing deleted)
+	 */
+	public int gc() {
+		synchronized (this.lock) {
+			Set<String> used = new HashSet<String>();
+			for(File m : this.getManifests()) {
+				try {
+					for(FileEntry e : readManifest(m))
+						used.addAll(e.chunks);
+				}catch (IOException e) {
+					System.err.println("[!] GC cancelled, couldn't read the manifest "+m.getPath()+". ("+e.getMessage()+")");
+					return -1;
+				}
+			}
+			int deleted = 0;
+			long freed = 0;
+			File[] prefixes = this.dir.listFiles();
+			if(prefixes != null)
+				for(File p : prefixes) {
+					File[] chunks = p.listFiles();
+					if(chunks == null)
+						continue;
+					for(File c : chunks) {
+						if(used.contains(c.getName()))
+							continue;
+						long l = c.length();
+						if(c.delete()) {
+							deleted++;
+							freed += l;
+						}
+					}
+					p.delete(); //If empty
+				}
+			System.out.println("Chunk store "+this.dir.getPath()+": "+deleted+" unused chunks deleted ("+ResourceSampler.formatBytes(freed)+"), "+used.size()+" in use.");
+			return deleted;
+		}
+	}
+
+	/**
+	 * @return All manifests that use this store
+	 */
+	private List<File> getManifests() {
+		ArrayList<File> l = new ArrayList<File>();
+		File[] dirs = this.host ? Main.deploymentDir.listFiles() : new File[] {this.dir.getParentFile().getParentFile()};
+		if(dirs != null)
+			for(File d : dirs) {
+				File[] backups = new File(d, "backups").listFiles();
+				if(backups != null)
+					for(File b : backups)
+						if(b.getName().endsWith(".manifest"))
+							l.add(b);
+			}
+		return l;
+	}
+
+	/**
+	 * @param manifest
+	 * @return The files of a manifest
+	 * @throws IOException
+	 */
+	public static List<FileEntry> readManifest(File manifest) throws IOException {
+		ArrayList<FileEntry> l = new ArrayList<FileEntry>();
+		try (BufferedReader r = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(manifest)), StandardCharsets.UTF_8))) {
+			String line = r.readLine();
+			if(!HEADER.equals(line))
+				throw new IOException("Not a manifest");
+			while((line = r.readLine()) != null) {
+				String[] f = line.split("\t", 4);
+				if(f.length < 4)
+					throw new IOException("Invalid line in manifest");
+				ArrayList<String> chunks = new ArrayList<String>();
+				for(String c : f[2].split(","))
+					if(!c.isEmpty())
+						chunks.add(c);
+				try {
+					l.add(new FileEntry(f[3], Long.parseLong(f[0]), Long.parseLong(f[1]), chunks));
+				}catch (NumberFormatException e) {
+					throw new IOException("Invalid line in manifest");
+				}
+			}
+		}
+		return l;
+	}
+
+	/**
+	 * @param dir Backup directory of a server
+	 * @return The newest manifest, NULL if none
+	 */
+	public static File getLatestManifest(File dir) {
+		File latest = null;
+		File[] files = dir.listFiles();
+		if(files != null)
+			for(File f : files)
+				if(f.getName().endsWith(".manifest") && (latest == null || f.lastModified() > latest.lastModified()))
+					latest = f;
+		return latest;
+	}
+
+	private static String hex(byte[] b) {
+		StringBuilder sb = new StringBuilder(b.length * 2);
+		for(byte x : b)
+			sb.append(Character.forDigit((x >> 4) & 0xF, 16)).append(Character.forDigit(x & 0xF, 16));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,112 @@
+package zombie.limgr;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes changed server configs to disk in the background.
+ * All changes to a server within the flush delay are merged into a single write, which goes
+ * to a temporary file first, is synced and then atomically renamed to server.ini,
+ * so readers never see a half-written file.
+ */
+public class ConfigFlusher {
+
+	private ScheduledExecutorService executor;
+	private long delay;
+	private ConcurrentHashMap<Integer, Server> scheduled = new ConcurrentHashMap<Integer, Server>();
+	private ConcurrentHashMap<Integer, Server> flushing = new ConcurrentHashMap<Integer, Server>();
+
+	/**
+	 * @param delay Time in ms changes are collected before they are written
+	 */
+	public ConfigFlusher(long delay) {
+		this.delay = Math.max(0, delay);
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ConfigFlusher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Marks the config of a server as changed.
+	 * @param srv
+	 */
+	public void schedule(final Server srv) {
+		if(this.scheduled.putIfAbsent(srv.getID(), srv) != null)
+			return; //Already scheduled, the change will be written with the others.
+		this.executor.schedule(new Runnable() {
+			public void run() {
+				flush(srv);
+			}
+		}, this.delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param srv
+	 * @return true if the server has changes that are not yet on disk.
+	 */
+	public boolean isPending(Server srv) {
+		return this.scheduled.containsKey(srv.getID()) || this.flushing.containsKey(srv.getID());
+	}
+
+	private synchronized void flush(Server srv) {
+		this.flushing.put(srv.getID(), srv);
+		try {
+			this.scheduled.remove(srv.getID());
+			if(!srv.getDir().isDirectory())
+				return; //Deleted meanwhile
+			ServerConfig c = srv.getConfig();
+			try {
+				long modified = write(c, srv.getIniFile());
+				srv.configPersisted(c, modified);
+			} catch (IOException e) {
+				System.err.println("[Server # "+ srv.getID() +"] [!] Error writing the server.ini.");
+				e.printStackTrace();
+			}
+		}finally {
+			this.flushing.remove(srv.getID());
+		}
+	}
+
+	/**
+	 * Writes a config via temporary file and atomic rename.
+	 * @param c
+	 * @param target server.ini
+	 * @return Modification time of the written file
+	 * @throws IOException
+	 */
+	public static long write(ServerConfig c, File target) throws IOException {
+		File tmp = new File(target.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			c.store(out);
+			out.flush();
+			out.getFD().sync();
+		}
+		try {
+			Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+		return target.lastModified();
+	}
+
+	/**
+	 * Writes all pending changes right now. (e.g. on shutdown)
+	 */
+	public void flushAll() {
+		for(Server srv : this.scheduled.values())
+			this.flush(srv);
+	}
+}
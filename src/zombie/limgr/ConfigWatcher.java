@@ -0,0 +1,103 @@
+package zombie.limgr;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Watches the server directories in the deployment directory and drops the cached
+ * {@link ServerConfig} of a server as soon as its server.ini is changed on disk.
+ * (WatchService isn't recursive, so every server directory is registered on its own.)
+ */
+public class ConfigWatcher implements Runnable, ServerRegistry.Listener {
+
+	private WatchService watcher;
+	private ConcurrentHashMap<WatchKey, Server> keys = new ConcurrentHashMap<WatchKey, Server>();
+	private ConcurrentHashMap<Integer, WatchKey> ids = new ConcurrentHashMap<Integer, WatchKey>();
+
+	public ConfigWatcher() throws IOException {
+		this.watcher = FileSystems.getDefault().newWatchService();
+		Thread t = new Thread(this, "ConfigWatcher");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Starts watching the directory of a server.
+	 * @param srv
+	 * @return false if the directory can't be watched
+	 */
+	public boolean register(Server srv) {
+		try {
+			WatchKey key = srv.getDir().toPath().register(this.watcher,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY,
+					StandardWatchEventKinds.ENTRY_DELETE);
+			this.keys.put(key, srv);
+			this.ids.put(srv.getID(), key);
+			return true;
+		} catch (IOException e) {
+			System.err.println("[Server # "+ srv.getID() +"] [!] Couldn't watch server.ini for changes.");
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	public void unregister(Server srv) {
+		WatchKey key = this.ids.remove(srv.getID());
+		if(key != null) {
+			key.cancel();
+			this.keys.remove(key);
+		}
+	}
+
+	@Override
+	public void onAdded(Server srv) {
+		this.register(srv);
+	}
+
+	@Override
+	public void onRemoved(Server srv) {
+		this.unregister(srv);
+	}
+
+	/**
+	 * @param srv
+	 * @return true if changes of the server.ini are noticed, so its cached config can be trusted.
+	 */
+	public boolean isWatched(Server srv) {
+		return this.ids.containsKey(srv.getID());
+	}
+
+	@Override
+	public void run() {
+		while(true) {
+			WatchKey key;
+			try {
+				key = this.watcher.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+			Server srv = this.keys.get(key);
+			for(WatchEvent<?> event : key.pollEvents()) {
+				if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					//Events were lost, drop everything.
+					for(Server s : this.keys.values())
+						s.invalidateConfig();
+				}else if(srv != null && "server.ini".equals(((Path) event.context()).toString())) {
+					srv.invalidateConfig();
+				}
+			}
+			if(!key.reset() && srv != null) {
+				this.ids.remove(srv.getID(), key);
+				this.keys.remove(key);
+			}
+		}
+	}
+}
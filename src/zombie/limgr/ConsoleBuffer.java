@@ -0,0 +1,254 @@
+package zombie.limgr;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Bounded console history of a server.
+ * Lines are kept in a ring, appending is O(1) and the oldest lines are dropped
+ * as soon as either the line or the byte budget is exceeded.
+ * Every line gets a monotonic sequence number (starting at 1), which clients
+ * use as a cursor to fetch only new lines.
+ */
+public class ConsoleBuffer {
+	
+	/**
+	 * Result of {@link ConsoleBuffer#since(long)}
+	 */
+	public static class Slice {
+		/** Sequence number of the newest line, to be passed as the next cursor. */
+		public final long cursor;
+		/** True if the client has to discard what it has, lines holds the full history then. */
+		public final boolean reset;
+		public final String[] lines;
+		
+		Slice(long cursor, boolean reset, String[] lines) {
+			this.cursor = cursor;
+			this.reset = reset;
+			this.lines = lines;
+		}
+	}
+
+	/**
+	 * Gets every new line pushed right after it has been appended.
+	 * Called while the buffer is locked, so implementations must not block.
+	 */
+	public interface Listener {
+		public void onLine(long seq, String line);
+	}
+
+	private String[] lines;
+	private int[] sizes;
+	private int head = 0; //Index of the oldest line
+	private int count = 0;
+	private long bytes = 0;
+	private long maxBytes;
+	private long nextSeq = 1; //Sequence number of the next appended line
+	private int waiting = 0; //Number of threads in awaitSince()
+	private CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	/**
+	 * @param maxLines Maximum number of lines kept in memory
+	 * @param maxBytes Maximum number of (UTF-8) bytes kept in memory
+	 */
+	public ConsoleBuffer(int maxLines, long maxBytes) {
+		this.lines = new String[Math.max(1, maxLines)];
+		this.sizes = new int[this.lines.length];
+		this.maxBytes = Math.max(1, maxBytes);
+	}
+
+	/**
+	 * Appends a line, dropping the oldest lines if the buffer is full.
+	 * @param line Line without trailing line break
+	 */
+	public synchronized void append(String line) {
+		int size = utf8Length(line) + 1;
+		if(this.count == this.lines.length)
+			this.dropOldest();
+		int tail = (this.head + this.count) % this.lines.length;
+		this.lines[tail] = line;
+		this.sizes[tail] = size;
+		this.count++;
+		this.bytes += size;
+		long seq = this.nextSeq++;
+		while(this.bytes > this.maxBytes && this.count > 1)
+			this.dropOldest();
+		for(Listener l : this.listeners)
+			l.onLine(seq, line);
+		if(this.waiting > 0)
+			this.notifyAll();
+	}
+
+	private void dropOldest() {
+		this.bytes -= this.sizes[this.head];
+		this.lines[this.head] = null;
+		this.head = (this.head + 1) % this.lines.length;
+		this.count--;
+	}
+
+	/**
+	 * Changes the budget. Lines that no longer fit are dropped.
+	 * @param maxLines
+	 * @param maxBytes
+	 */
+	public synchronized void resize(int maxLines, long maxBytes) {
+		maxLines = Math.max(1, maxLines);
+		this.maxBytes = Math.max(1, maxBytes);
+		if(maxLines != this.lines.length) {
+			while(this.count > maxLines)
+				this.dropOldest();
+			String[] l = new String[maxLines];
+			int[] s = new int[maxLines];
+			for(int i = 0; i < this.count; i++) {
+				int j = (this.head + i) % this.lines.length;
+				l[i] = this.lines[j];
+				s[i] = this.sizes[j];
+			}
+			this.lines = l;
+			this.sizes = s;
+			this.head = 0;
+		}
+		while(this.bytes > this.maxBytes && this.count > 1)
+			this.dropOldest();
+	}
+
+	/**
+	 * Snapshot of the currently held lines, oldest first.
+	 * Only the references are copied, not the text itself.
+	 * @return
+	 */
+	public synchronized String[] snapshot() {
+		return this.tail(this.count);
+	}
+
+	/**
+	 * The newest n lines, oldest first.
+	 * @param n
+	 * @return
+	 */
+	public synchronized String[] tail(int n) {
+		n = Math.max(0, Math.min(n, this.count));
+		String[] s = new String[n];
+		int start = this.head + this.count - n;
+		for(int i = 0; i < n; i++)
+			s[i] = this.lines[(start + i) % this.lines.length];
+		return s;
+	}
+
+	/**
+	 * Lines newer than the given cursor.
+	 * A cursor of 0 or one that is ahead of this buffer (e.g. after a restart of the manager)
+	 * returns the complete history with the reset flag set.
+	 * If lines behind the cursor have already been dropped, all held lines are returned.
+	 * @param since Sequence number of the last line the client has
+	 * @return
+	 */
+	public synchronized Slice since(long since) {
+		long last = this.nextSeq - 1;
+		if(since <= 0 || since > last)
+			return new Slice(last, true, this.tail(this.count));
+		long n = Math.min(last - since, this.count);
+		return new Slice(last, false, this.tail((int) n));
+	}
+	
+	/**
+	 * Like {@link #since(long)}, but waits up to timeout ms for new lines if there are none yet.
+	 * @param since
+	 * @param timeout Maximum waiting time in ms
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public synchronized Slice awaitSince(long since, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		this.waiting++;
+		try {
+			long remaining;
+			while(since == this.nextSeq - 1 && (remaining = deadline - System.currentTimeMillis()) > 0)
+				this.wait(remaining);
+		}finally {
+			this.waiting--;
+		}
+		return this.since(since);
+	}
+	
+	/**
+	 * Registers a listener and returns the lines it missed since the cursor, atomically,
+	 * so that no line is lost or delivered twice.
+	 * @param l
+	 * @param since Cursor of the subscriber, 0 for the complete history.
+	 * @return
+	 */
+	public synchronized Slice subscribe(Listener l, long since) {
+		this.listeners.add(l);
+		return this.since(since);
+	}
+	
+	public void unsubscribe(Listener l) {
+		this.listeners.remove(l);
+	}
+	
+	/**
+	 * @return Number of registered listeners
+	 */
+	public int getListenerCount() {
+		return this.listeners.size();
+	}
+	
+	/**
+	 * @return Sequence number of the newest line, 0 if nothing has been written yet.
+	 */
+	public synchronized long getCursor() {
+		return this.nextSeq - 1;
+	}
+
+	public synchronized boolean isEmpty() {
+		return this.count == 0;
+	}
+
+	public synchronized int size() {
+		return this.count;
+	}
+
+	public synchronized long byteSize() {
+		return this.bytes;
+	}
+
+	public synchronized void clear() {
+		for(int i = 0; i < this.lines.length; i++)
+			this.lines[i] = null;
+		this.head = 0;
+		this.count = 0;
+		this.bytes = 0;
+	}
+
+	/**
+	 * Joins lines into one text, each line terminated by "\n".
+	 * @param lines
+	 * @return
+	 */
+	public static String join(String[] lines) {
+		int len = 0;
+		for(String s : lines)
+			len += s.length() + 1;
+		StringBuilder sb = new StringBuilder(len);
+		for(String s : lines)
+			sb.append(s).append('\n');
+		return sb.toString();
+	}
+
+	private static int utf8Length(String s) {
+		int len = 0;
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c < 0x80)
+				len++;
+			else if(c < 0x800)
+				len += 2;
+			else if(Character.isHighSurrogate(c)) {
+				len += 4;
+				i++;
+			}else
+				len += 3;
+		}
+		return len;
+	}
+}
@@ -0,0 +1,188 @@
+package zombie.limgr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Restores a backup over the existing files directory ([Backup] restore=differential) and only
+ * writes what differs: a file is kept if size and modification time match the backup, or, if only
+ * the time differs (or [Backup] restore-checksum=true), if its CRC (ZIP) or chunks (manifest) match.
+ * Files that aren't in the backup are deleted.
+ */
+public class DiffRestore {
+
+	/**
+	 * What a restore has done.
+	 */
+	public static class Result {
+		public int unchanged, written, deleted;
+		public long skippedBytes, writtenBytes;
+
+		@Override
+		public String toString() {
+			return this.written+" files written ("+ResourceSampler.formatBytes(this.writtenBytes)+"), "+this.unchanged+" unchanged ("
+					+ResourceSampler.formatBytes(this.skippedBytes)+" skipped), "+this.deleted+" deleted";
+		}
+	}
+
+	/**
+	 * @return true for [Backup] restore=differential, false to delete and extract everything
+	 */
+	public static boolean isEnabled() {
+		return Main.getSetting("Backup", "restore", "staged").equalsIgnoreCase("differential");
+	}
+
+	/**
+	 * @return [Backup] restore-checksum, compare the content even if size and time match
+	 */
+	public static boolean isChecksumForced() {
+		return Main.getSetting("Backup", "restore-checksum", "false").equalsIgnoreCase("true");
+	}
+
+	/**
+	 * @param zip
+	 * @param folder
+	 * @param checksum Compare the CRC even if size and time match
+	 * @return
+	 * @throws IOException
+	 */
+	public static Result fromZip(File zip, File folder, boolean checksum) throws IOException {
+		Result r = new Result();
+		Set<String> keep = new HashSet<String>();
+		byte[] buf = new byte[65536];
+		try (ZipFile z = new ZipFile(zip)) {
+			Enumeration<? extends ZipEntry> en = z.entries();
+			while(en.hasMoreElements()) {
+				ZipEntry e = en.nextElement();
+				if(e.isDirectory())
+					continue;
+				File target = resolve(folder, e.getName());
+				keep.add(path(target));
+				//DOS times have a resolution of 2s
+				boolean sameTime = target.lastModified() - e.getTime() >= 0 && target.lastModified() - e.getTime() < 2000;
+				if(target.isFile() && target.length() == e.getSize() && e.getCrc() != -1
+						&& ((sameTime && !checksum) || crc(target, buf) == e.getCrc())) {
+					r.unchanged++;
+					r.skippedBytes += e.getSize();
+					if(!sameTime)
+						target.setLastModified(e.getTime());
+					continue;
+				}
+				mkdirs(target.getParentFile());
+				try (InputStream in = z.getInputStream(e); OutputStream out = new FileOutputStream(target)) {
+					int n;
+					while((n = in.read(buf)) >= 0)
+						out.write(buf, 0, n);
+				}
+				target.setLastModified(e.getTime());
+				r.written++;
+				r.writtenBytes += e.getSize();
+			}
+		}
+		r.deleted = deleteMissing(folder, keep);
+		return r;
+	}
+
+	/**
+	 * @param store
+	 * @param manifest
+	 * @param folder
+	 * @param checksum Compare the chunks even if size and time match
+	 * @return
+	 * @throws IOException
+	 */
+	public static Result fromManifest(ChunkStore store, File manifest, File folder, boolean checksum) throws IOException {
+		Result r = new Result();
+		Set<String> keep = new HashSet<String>();
+		MessageDigest sha;
+		try {
+			sha = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		synchronized (store.lock) {
+			for(ChunkStore.FileEntry e : ChunkStore.readManifest(manifest)) {
+				File target = resolve(folder, e.path);
+				keep.add(path(target));
+				boolean sameTime = target.lastModified() == e.mtime;
+				if(target.isFile() && target.length() == e.size && ((sameTime && !checksum) || store.matches(e, target, sha))) {
+					r.unchanged++;
+					r.skippedBytes += e.size;
+					if(!sameTime)
+						target.setLastModified(e.mtime);
+					continue;
+				}
+				store.restoreFile(e, target, sha);
+				r.written++;
+				r.writtenBytes += e.size;
+			}
+		}
+		r.deleted = deleteMissing(folder, keep);
+		return r;
+	}
+
+	/**
+	 * @return The file of an entry, it has to be inside the folder
+	 */
+	private static File resolve(File folder, String name) throws IOException {
+		File f = new File(folder, name);
+		if(!path(f).startsWith(path(folder) + File.separator))
+			throw new IOException("Entry outside of the target directory: "+name);
+		return f;
+	}
+
+	private static String path(File f) {
+		return f.toPath().toAbsolutePath().normalize().toString();
+	}
+
+	private static void mkdirs(File dir) throws IOException {
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Couldn't create "+dir.getPath());
+	}
+
+	private static long crc(File f, byte[] buf) throws IOException {
+		CRC32 crc = new CRC32();
+		try (InputStream in = new FileInputStream(f)) {
+			int n;
+			while((n = in.read(buf)) >= 0)
+				crc.update(buf, 0, n);
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Deletes all files below dir that aren't in keep.
+	 * @param dir
+	 * @param keep Absolute paths
+	 * @return Number of deleted files
+	 */
+	private static int deleteMissing(File dir, Set<String> keep) throws IOException {
+		int n = 0;
+		File[] files = dir.listFiles();
+		if(files == null)
+			return 0;
+		for(File f : files) {
+			if(f.isDirectory() && !Files.isSymbolicLink(f.toPath())) {
+				n += deleteMissing(f, keep);
+			}else if(!keep.contains(path(f))) {
+				if(!f.delete())
+					throw new IOException("Couldn't delete "+f.getPath());
+				n++;
+			}
+		}
+		return n;
+	}
+}
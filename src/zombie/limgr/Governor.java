@@ -0,0 +1,205 @@
+package zombie.limgr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies the scheduling limits of the server.ini to the server process:
+ * CPU-Set (taskset), Nice (nice), IO-Class / IO-Priority (ionice), and with Cgroup=true a cgroup v2
+ * group below [Governor] cgroup-root with CPU-Max (percent of one core) and Memory-Max (MB).
+ * cgroup-root has to be a directory directly in the cgroup v2 mount, writable for this user.
+ * taskset, nice and ionice exec the server, so the PID stays the one of the server. The cgroup is
+ * joined by a shell that execs the server as well, so all of its memory is charged to the group.
+ */
+public class Governor {
+
+	private static final String[] TOOLS = {"sh", "taskset", "nice", "ionice"};
+
+	private final File cgroupRoot;
+	private boolean cgroupWarned = false;
+	private final Set<String> tools = new HashSet<String>(); //Found in the PATH
+	private final Set<String> warned = new HashSet<String>();
+
+	public Governor(String cgroupRoot) {
+		this.cgroupRoot = new File(cgroupRoot);
+		String path = System.getenv("PATH");
+		if(path != null)
+			for(String tool : TOOLS)
+				for(String dir : path.split(File.pathSeparator))
+					if(new File(dir, tool).canExecute())
+						this.tools.add(tool);
+	}
+
+	/**
+	 * Puts the cgroup join and taskset / nice / ionice in front of the command line, if configured.
+	 * @param cmd
+	 * @param srv
+	 * @return
+	 */
+	public String[] wrap(String[] cmd, Server srv) {
+		ServerConfig c = srv.getConfig();
+		ArrayList<String> l = new ArrayList<String>();
+		File procs = this.prepareCgroup(srv);
+		if(procs != null && available("sh")) //Join before exec, memory charged before a move would stay with the parent
+			l.addAll(Arrays.asList("sh", "-c", "{ echo $$ > \"$0\"; } 2>/dev/null || echo \"[!] Couldn't join the cgroup $0\"; exec \"$@\"", procs.getPath()));
+		String cpus = c.get("CPU-Set", "");
+		if(!cpus.isEmpty() && available("taskset"))
+			l.addAll(Arrays.asList("taskset", "-c", cpus));
+		int nice = c.getInt("Nice", 0);
+		if(nice != 0 && available("nice"))
+			l.addAll(Arrays.asList("nice", "-n", Integer.toString(nice)));
+		String ioClass = ioClass(c.get("IO-Class", ""));
+		if(ioClass != null && available("ionice")) {
+			l.addAll(Arrays.asList("ionice", "-t", "-c", ioClass)); //-t: start anyway if the class isn't allowed (realtime needs root)
+			if(!ioClass.equals("3"))
+				l.addAll(Arrays.asList("-n", Integer.toString(c.getInt("IO-Priority", 4))));
+		}
+		l.addAll(Arrays.asList(cmd));
+		return l.toArray(new String[l.size()]);
+	}
+
+	/**
+	 * Creates the cgroup of a server with Cgroup=true and writes its limits, before the server is started.
+	 * @param srv
+	 * @return cgroup.procs of the group, NULL if not configured or failed
+	 */
+	private File prepareCgroup(Server srv) {
+		ServerConfig c = srv.getConfig();
+		if(!c.getBoolean("Cgroup", false))
+			return null;
+		File cg = new File(this.cgroupRoot, "server-"+srv.getID());
+		try {
+			if(!new File(this.cgroupRoot.getParentFile(), "cgroup.controllers").exists())
+				throw new IOException("No cgroup v2 hierarchy at "+this.cgroupRoot.getParent());
+			if(!this.cgroupRoot.exists() && !this.cgroupRoot.mkdir())
+				throw new IOException("Couldn't create "+this.cgroupRoot);
+			try {
+				write(new File(this.cgroupRoot, "cgroup.subtree_control"), "+cpu +memory");
+			}catch (IOException e) {} //Already enabled or not delegated, writing the limits will tell
+			if(!cg.exists() && !cg.mkdir())
+				throw new IOException("Couldn't create "+cg);
+			int cpuMax = c.getInt("CPU-Max", 0);
+			write(new File(cg, "cpu.max"), cpuMax > 0 ? (cpuMax * 1000)+" 100000" : "max 100000");
+			long memMax = c.getLong("Memory-Max", 0);
+			write(new File(cg, "memory.max"), memMax > 0 ? Long.toString(memMax * 1024 * 1024) : "max");
+			return new File(cg, "cgroup.procs");
+		}catch (IOException e) {
+			if(!this.cgroupWarned)
+				System.err.println("[Server # "+srv.getID()+"] [!] Couldn't apply cgroup limits ("+e.getMessage()+"). Is cgroup v2 mounted and delegated to this user?");
+			this.cgroupWarned = true;
+			return null;
+		}
+	}
+
+	/**
+	 * @param srv
+	 * @return The limits the running process actually has, NULL if not running or nothing is limited
+	 */
+	public String describe(Server srv) {
+		int pid = srv.pid;
+		if(pid <= 0)
+			return null;
+		ArrayList<String> l = new ArrayList<String>();
+		ServerConfig c = srv.getConfig();
+		if(!c.get("CPU-Set", "").isEmpty()) {
+			String s = read("/proc/"+pid+"/status");
+			if(s != null)
+				for(String line : s.split("\n"))
+					if(line.startsWith("Cpus_allowed_list:"))
+						l.add("cpus "+line.substring(18).trim());
+		}
+		if(c.getInt("Nice", 0) != 0) {
+			String s = read("/proc/"+pid+"/stat");
+			if(s != null && s.lastIndexOf(')') > 0) {
+				String[] f = s.substring(s.lastIndexOf(')') + 2).split(" ");
+				if(f.length > 16)
+					l.add("nice "+f[16]);
+			}
+		}
+		if(!c.get("IO-Class", "").isEmpty()) {
+			String s = exec("ionice", "-p", Integer.toString(pid));
+			if(s != null)
+				l.add("io "+s);
+		}
+		if(c.getBoolean("Cgroup", false)) {
+			String s = read("/proc/"+pid+"/cgroup");
+			if(s != null && s.startsWith("0::")) {
+				File cg = new File(this.cgroupRoot.getParent() + s.substring(3).trim());
+				String cpu = read(new File(cg, "cpu.max").getPath());
+				String mem = read(new File(cg, "memory.max").getPath());
+				l.add("cgroup "+cg.getName()+(cpu != null ? " cpu.max="+cpu.trim() : "")+(mem != null ? " memory.max="+mem.trim() : ""));
+			}
+		}
+		return l.isEmpty() ? null : String.join(", ", l);
+	}
+
+	/**
+	 * @param s realtime / best-effort / idle or 1-3
+	 * @return ionice class number, NULL if not set
+	 */
+	private static String ioClass(String s) {
+		switch(s.toLowerCase()) {
+		case "1": case "realtime":
+			return "1";
+		case "2": case "best-effort":
+			return "2";
+		case "3": case "idle":
+			return "3";
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @param tool
+	 * @return true if the program has been found in the PATH, warns once if not
+	 */
+	private synchronized boolean available(String tool) {
+		if(this.tools.contains(tool))
+			return true;
+		if(this.warned.add(tool))
+			System.err.println("[!] "+tool+" not found, limit not applied.");
+		return false;
+	}
+
+	private static void write(File f, String value) throws IOException {
+		try (FileOutputStream out = new FileOutputStream(f)) {
+			out.write(value.getBytes(StandardCharsets.US_ASCII));
+		}
+	}
+
+	private static String read(String path) {
+		try {
+			return new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.US_ASCII);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static String exec(String... cmd) {
+		try {
+			Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+			BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()));
+			String line = r.readLine();
+			p.waitFor(1, TimeUnit.SECONDS);
+			r.close();
+			return line == null ? null : line.trim();
+		} catch (IOException e) {
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+}
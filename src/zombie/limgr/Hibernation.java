@@ -0,0 +1,331 @@
+package zombie.limgr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops servers nobody is connected to and starts them again on the first connection.
+ * Per server (server.ini): Hibernate=true, Hibernate-After minutes without connections.
+ * Connections are counted in /proc/net/tcp(6) every [Hibernation] interval seconds.
+ * A hibernating server is OFFLINE with LiMGR listening on its Port. The first client closes the
+ * listener, starts the server and is passed through to it once the Ready-Pattern has shown up
+ * (at most [Hibernation] wake-timeout seconds), later clients connect to the server directly.
+ * If the start is refused or fails, the server goes back into hibernation.
+ */
+public class Hibernation implements Runnable, ServerRegistry.Listener {
+
+	private class Entry {
+		long idleSince = 0; //0 = not idle / not checked yet
+		ServerSocket listener;
+	}
+
+	private final boolean enabled;
+	private final long interval;
+	private final long wakeTimeout;
+	private final ConcurrentHashMap<Integer, Entry> entries = new ConcurrentHashMap<Integer, Entry>();
+	private ScheduledExecutorService executor;
+
+	/**
+	 * @param enabled
+	 * @param interval Seconds between two checks
+	 * @param wakeTimeout Seconds a client waits for the server
+	 */
+	public Hibernation(boolean enabled, long interval, long wakeTimeout) {
+		this.enabled = enabled;
+		this.interval = Math.max(1, interval);
+		this.wakeTimeout = Math.max(1, wakeTimeout);
+	}
+
+	public void start() {
+		if(!this.enabled)
+			return;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Hibernation");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.executor.scheduleWithFixedDelay(this, this.interval, this.interval, TimeUnit.SECONDS);
+	}
+
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	private Entry entry(Server srv) {
+		Entry e = this.entries.get(srv.getID());
+		if(e == null) {
+			Entry n = new Entry();
+			e = this.entries.putIfAbsent(srv.getID(), n);
+			if(e == null)
+				e = n;
+		}
+		return e;
+	}
+
+	@Override
+	public void run() {
+		long now = System.currentTimeMillis();
+		for(Server srv : Main.servers) {
+			try {
+				ServerConfig c = srv.getConfig();
+				Entry e = this.entry(srv);
+				synchronized (e) {
+					if(!c.getBoolean("Hibernate", false) || srv.getState() != Server.State.ONLINE || e.listener != null) {
+						e.idleSince = 0;
+						continue;
+					}
+					if(getConnections(Integer.parseInt(c.getPort())) > 0 || e.idleSince == 0) {
+						e.idleSince = now;
+						continue;
+					}
+					if(now - e.idleSince < c.getLong("Hibernate-After", 15) * 60000)
+						continue;
+					e.idleSince = 0;
+				}
+				this.hibernate(srv);
+			}catch (NumberFormatException x) {
+				continue; //Invalid port
+			}catch (Throwable t) {
+				System.err.println("[Hibernation] [!] Error checking server #"+srv.getID()+".");
+				t.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Stops an idle server, its port is taken over once it has exited.
+	 * @param srv
+	 */
+	private void hibernate(final Server srv) {
+		final CompletableFuture<Integer> exit = srv.onExit();
+		System.out.println("[Hibernation] Server #"+srv.getID()+" has been idle for "+srv.getConfig().getLong("Hibernate-After", 15)+" minutes, hibernating. . .");
+		if(!srv.stop())
+			return;
+		exit.thenRun(new Runnable() {
+			public void run() {
+				listen(srv, exit);
+			}
+		});
+	}
+
+	private void listen(final Server srv, CompletableFuture<Integer> exit) {
+		Entry e = this.entry(srv);
+		final ServerSocket ss;
+		synchronized (e) {
+			//Started again, crashed or deleted meanwhile
+			if(srv.onExit() != exit || srv.getState() != Server.State.OFFLINE || e.listener != null || !Main.servers.contains(srv.getID()))
+				return;
+			try {
+				ss = new ServerSocket();
+				ss.setReuseAddress(true);
+				ss.bind(new InetSocketAddress(Integer.parseInt(srv.getConfig().getPort())));
+			}catch (IOException | NumberFormatException x) {
+				System.err.println("[Hibernation] [!] Couldn't listen on port "+srv.getConfig().getPort()+" of server #"+srv.getID()+": "+x.getMessage());
+				return;
+			}
+			e.listener = ss;
+			srv.setState(Server.State.HIBERNATING);
+		}
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				accept(srv, ss);
+			}
+		}, "Hibernation #"+srv.getID());
+		t.setDaemon(true);
+		t.start();
+		System.out.println("[Hibernation] Server #"+srv.getID()+" is hibernating, waiting for connections on port "+ss.getLocalPort()+".");
+	}
+
+	private void accept(Server srv, ServerSocket ss) {
+		Socket client;
+		try {
+			client = ss.accept();
+		} catch (IOException e) {
+			return; //Closed by wake() / cancel()
+		}
+		System.out.println("[Hibernation] Connection from "+client.getRemoteSocketAddress()+", waking server #"+srv.getID()+". . .");
+		this.wake(srv); //Frees the port for the server
+		Server.StartResult r = srv.requestStart();
+		try {
+			long deadline = System.currentTimeMillis() + this.wakeTimeout * 1000;
+			while(srv.getState() == Server.State.QUEUED && System.currentTimeMillis() < deadline)
+				Thread.sleep(500);
+			if((r != Server.StartResult.STARTED && r != Server.StartResult.QUEUED && r != Server.StartResult.RUNNING)
+					|| !srv.awaitReady(Math.max(1, deadline - System.currentTimeMillis()))) {
+				System.err.println("[Hibernation] [!] Server #"+srv.getID()+" didn't get ready, connection closed. ("+r+")");
+				close(client);
+				this.relisten(srv);
+				return;
+			}
+			Socket server = new Socket("127.0.0.1", ss.getLocalPort());
+			proxy(srv, client, server);
+		} catch (InterruptedException e) {
+			close(client);
+		} catch (IOException e) {
+			System.err.println("[Hibernation] [!] Couldn't connect to server #"+srv.getID()+": "+e.getMessage());
+			close(client);
+		}
+	}
+
+	/**
+	 * Goes back into hibernation after a failed wake, so the next connection tries again.
+	 * A server that is still starting keeps the port.
+	 */
+	private void relisten(Server srv) {
+		if(srv.getState() == Server.State.QUEUED && Main.admission != null && Main.admission.cancel(srv))
+			srv.setState(Server.State.OFFLINE);
+		if(srv.getState() == Server.State.ERROR && srv.onExit().isDone())
+			srv.setState(Server.State.OFFLINE); //Start failed
+		this.listen(srv, srv.onExit());
+	}
+
+	/**
+	 * Passes the waiting client through to the server, until one side closes.
+	 */
+	private static void proxy(Server srv, final Socket client, final Socket server) throws IOException {
+		server.setTcpNoDelay(true);
+		client.setTcpNoDelay(true);
+		final InputStream fromServer = server.getInputStream();
+		final OutputStream toClient = client.getOutputStream();
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				pipe(fromServer, toClient, client, server);
+			}
+		}, "Hibernation #"+srv.getID()+" proxy");
+		t.setDaemon(true);
+		t.start();
+		pipe(client.getInputStream(), server.getOutputStream(), server, client);
+		try {
+			t.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		close(client);
+		close(server);
+	}
+
+	private static void pipe(InputStream in, OutputStream out, Socket to, Socket from) {
+		byte[] buf = new byte[16384];
+		try {
+			int r;
+			while((r = in.read(buf)) >= 0) {
+				out.write(buf, 0, r);
+				out.flush();
+			}
+			to.shutdownOutput();
+		}catch (IOException e) {
+			close(to); //Connection reset, end the other direction as well
+			close(from);
+		}
+	}
+
+	private static void close(Socket s) {
+		try {
+			s.close();
+		} catch (IOException e) {}
+	}
+
+	/**
+	 * Closes the listener of a hibernating server, so it can be started.
+	 * @param srv
+	 * @return false if it isn't hibernating
+	 */
+	public boolean wake(Server srv) {
+		Entry e = this.entries.get(srv.getID());
+		if(e == null)
+			return false;
+		synchronized (e) {
+			e.idleSince = 0;
+			if(e.listener == null)
+				return false;
+			try {
+				e.listener.close();
+			} catch (IOException x) {}
+			e.listener = null;
+			if(srv.getState() == Server.State.HIBERNATING)
+				srv.setState(Server.State.OFFLINE);
+			return true;
+		}
+	}
+
+	/**
+	 * Ends the hibernation without starting the server. (Server stopped by the user)
+	 * @param srv
+	 * @return false if it isn't hibernating
+	 */
+	public boolean cancel(Server srv) {
+		if(!this.wake(srv))
+			return false;
+		System.out.println("[Hibernation] Server #"+srv.getID()+" no longer hibernating.");
+		return true;
+	}
+
+	public boolean isHibernating(Server srv) {
+		Entry e = this.entries.get(srv.getID());
+		if(e == null)
+			return false;
+		synchronized (e) {
+			return e.listener != null;
+		}
+	}
+
+	/**
+	 * Closes all listeners.
+	 */
+	public void shutdown() {
+		if(this.executor != null)
+			this.executor.shutdownNow();
+		for(Server srv : Main.servers)
+			this.wake(srv);
+	}
+
+	/**
+	 * @param port
+	 * @return Number of established TCP connections on the local port, IPv4 and IPv6
+	 */
+	public static int getConnections(int port) {
+		return countEstablished("/proc/net/tcp", port) + countEstablished("/proc/net/tcp6", port);
+	}
+
+	private static int countEstablished(String path, int port) {
+		String s;
+		try {
+			s = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.US_ASCII);
+		} catch (IOException e) {
+			return 0;
+		}
+		String suffix = String.format(":%04X", port);
+		int n = 0;
+		for(String line : s.split("\n")) {
+			String[] f = line.trim().split("\\s+");
+			//sl local_address rem_address st ...; st 01 = ESTABLISHED
+			if(f.length > 3 && f[1].endsWith(suffix) && f[3].equals("01"))
+				n++;
+		}
+		return n;
+	}
+
+	@Override
+	public void onAdded(Server srv) {}
+
+	@Override
+	public void onRemoved(Server srv) {
+		this.wake(srv);
+		this.entries.remove(srv.getID());
+	}
+}
@@ -3,7 +3,6 @@ package zombie.limgr;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Scanner;
 
@@ -22,7 +21,19 @@ public class Main {
 	
 	public static File deploymentDir;
 	public static File templatesDir;
-	public static ArrayList<Server> servers;
+	public static ServerRegistry servers = new ServerRegistry();
+	public static ProcessIO processIO;
+	public static OutputMirror mirror;
+	public static ConfigWatcher configWatcher;
+	public static ConfigFlusher configFlusher;
+	public static Allocator allocator;
+	public static ResourceSampler sampler;
+	public static Watchdog watchdog;
+	public static MemoryAdmission admission;
+	public static PressureMonitor pressure;
+	public static Governor governor;
+	public static AppCDS appcds;
+	public static Hibernation hibernation;
 	
 	/* Interfaces ^_^ */
 	private static CLI cli; //Command line
@@ -67,8 +78,51 @@ public class Main {
 		//Init Dirs
 		if(!loadDirs())return;
 		
+		//Process I/O engine
+		mirror = new OutputMirror(config, System.out);
+		try {
+			configFlusher = new ConfigFlusher(Long.parseLong(getSetting("Config", "flush-delay", "500")));
+		}catch (NumberFormatException e) {
+			System.err.println("[!] Invalid flush-delay in config.ini. Use fallback: 500ms");
+			configFlusher = new ConfigFlusher(500);
+		}
+		processIO = ProcessIO.create(config);
+		System.out.println("Process I/O engine: " + processIO.getName());
+		
 		//load MCServer
 		loadServers();
+		try {
+			sampler = new ResourceSampler(Long.parseLong(getSetting("Stats", "interval", "5")), Integer.parseInt(getSetting("Stats", "history", "2880")));
+		}catch (NumberFormatException e) {
+			System.err.println("[!] Invalid [Stats] interval / history in config.ini. Use fallback: 5s / 2880");
+			sampler = new ResourceSampler(5, 2880);
+		}
+		servers.addListener(sampler);
+		sampler.start();
+		appcds = new AppCDS(getSetting("AppCDS", "enabled", "false").equalsIgnoreCase("true"), templatesDir);
+		governor = new Governor(getSetting("Governor", "cgroup-root", "/sys/fs/cgroup/limgr"));
+		pressure = new PressureMonitor();
+		pressure.start();
+		try {
+			watchdog = new Watchdog(getSetting("Watchdog", "enabled", "true").equalsIgnoreCase("true"),
+					Integer.parseInt(getSetting("Watchdog", "max-restarts", "10")), Long.parseLong(getSetting("Watchdog", "window", "60")));
+		}catch (NumberFormatException e) {
+			System.err.println("[!] Invalid [Watchdog] max-restarts / window in config.ini. Use fallback: 10 / 60s");
+			watchdog = new Watchdog(true, 10, 60);
+		}
+		servers.addListener(watchdog);
+		admission = new MemoryAdmission();
+		System.out.println("Memory budget: "+(admission.getBudget() > 0 ? admission.getBudget()+"M" : "<UNLIMITED>"));
+		try {
+			hibernation = new Hibernation(getSetting("Hibernation", "enabled", "true").equalsIgnoreCase("true"),
+					Long.parseLong(getSetting("Hibernation", "interval", "60")), Long.parseLong(getSetting("Hibernation", "wake-timeout", "300")));
+		}catch (NumberFormatException e) {
+			System.err.println("[!] Invalid [Hibernation] interval / wake-timeout in config.ini. Use fallback: 60s / 300s");
+			hibernation = new Hibernation(true, 60, 300);
+		}
+		servers.addListener(hibernation);
+		hibernation.start();
+		Autostart.begin();
 		
 		//Try to start web interface until its running, if enabled.
 		int trys = 3;
@@ -127,8 +181,15 @@ public class Main {
 		    {
 		    	if(httpd != null)
 		    		httpd.Stop();
-		    	for(Server srv : servers)
-					srv.kill();
+		    	if(watchdog != null)
+		    		watchdog.shutdown();
+		    	if(hibernation != null)
+		    		hibernation.shutdown();
+		    	if(admission != null)
+		    		admission.shutdown();
+		    	new ShutdownCoordinator().stopAll(servers);
+		    	configFlusher.flushAll();
+		    	mirror.flush();
 		    	System.out.println("\n\nBye, Hacker-san :3");
 		    }
 		});
@@ -181,7 +242,87 @@ public class Main {
 						"deploymnt-dir=servers\n" +
 						"\n" +
 						"[Limits]\n" +
-						"port-range=25000-25999";
+						"port-range=25000-25999\n" +
+						"memory-budget=auto\n" +
+						"memory-reserve=1024\n" +
+						"memory-overhead=25\n" +
+						"memory-overhead-min=128\n" +
+						"memory-policy=refuse\n" +
+						"\n" +
+						"[Process]\n" +
+						"io-engine=pooled\n" +
+						"io-threads=2\n" +
+						"io-poll-interval=20\n" +
+						"ready-pattern=Done \\\\(|Listening on /\n" +
+						"ready-timeout=300\n" +
+						"\n" +
+						"[Output]\n" +
+						"mirror-servers=true\n" +
+						"mirror-queue=10000\n" +
+						"mirror-policy=drop\n" +
+						"mirror-batch=512\n" +
+						"\n" +
+						"[Config]\n" +
+						"flush-delay=500\n" +
+						"\n" +
+						"[Autostart]\n" +
+						"enabled=true\n" +
+						"parallel=2\n" +
+						"stagger=5\n" +
+						"timeout=300\n" +
+						"\n" +
+						"[Stats]\n" +
+						"interval=5\n" +
+						"history=2880\n" +
+						"\n" +
+						"[Watchdog]\n" +
+						"enabled=true\n" +
+						"max-restarts=10\n" +
+						"window=60\n" +
+						"\n" +
+						"[Pressure]\n" +
+						"enabled=true\n" +
+						"interval=2\n" +
+						"cpu=90\n" +
+						"memory=20\n" +
+						"io=50\n" +
+						"min-available=512\n" +
+						"max-defer=600\n" +
+						"\n" +
+						"[Governor]\n" +
+						"cgroup-root=/sys/fs/cgroup/limgr\n" +
+						"\n" +
+						"[Profiles]\n" +
+						"g1-lowlatency=java -Xms{MEM}M -Xmx{MEM}M -XX:+UseG1GC -XX:+ParallelRefProcEnabled -XX:MaxGCPauseMillis=200 -XX:+UnlockExperimentalVMOptions -XX:+DisableExplicitGC -XX:+AlwaysPreTouch -XX:G1NewSizePercent=30 -XX:G1MaxNewSizePercent=40 -XX:G1HeapRegionSize=8M -XX:G1ReservePercent=20 -XX:G1HeapWastePercent=5 -XX:G1MixedGCCountTarget=4 -XX:InitiatingHeapOccupancyPercent=15 -XX:G1MixedGCLiveThresholdPercent=90 -XX:G1RSetUpdatingPauseTimePercent=5 -XX:SurvivorRatio=32 -XX:+PerfDisableSharedMem -XX:MaxTenuringThreshold=1 -jar server.jar nogui\n" +
+						"g1-lowlatency-hugepages=java -Xms{MEM}M -Xmx{MEM}M -XX:+UseG1GC -XX:+UseLargePages -XX:+ParallelRefProcEnabled -XX:MaxGCPauseMillis=200 -XX:+UnlockExperimentalVMOptions -XX:+DisableExplicitGC -XX:+AlwaysPreTouch -XX:G1NewSizePercent=30 -XX:G1MaxNewSizePercent=40 -XX:G1HeapRegionSize=8M -XX:G1ReservePercent=20 -XX:InitiatingHeapOccupancyPercent=15 -XX:+PerfDisableSharedMem -XX:MaxTenuringThreshold=1 -jar server.jar nogui\n" +
+						"throughput=java -Xms{MEM}M -Xmx{MEM}M -XX:+UseParallelGC -XX:+AlwaysPreTouch -XX:+PerfDisableSharedMem -jar server.jar nogui\n" +
+						"proxy=java -Xms{MEM}M -Xmx{MEM}M -XX:+UseG1GC -XX:G1HeapRegionSize=4M -XX:+UnlockExperimentalVMOptions -XX:+ParallelRefProcEnabled -XX:+AlwaysPreTouch -XX:MaxInlineLevel=15 -jar server.jar\n" +
+						"container=java -XX:MaxRAM={MEM}M -XX:+UseContainerSupport -XX:InitialRAMPercentage=50.0 -XX:MaxRAMPercentage=75.0 -XX:+UseG1GC -XX:+ParallelRefProcEnabled -XX:MaxGCPauseMillis=200 -XX:+PerfDisableSharedMem -jar server.jar nogui\n" +
+						"\n" +
+						"[Backup]\n" +
+						"writer=parallel\n" +
+						"threads=0\n" +
+						"level=6\n" +
+						"block-size=1024\n" +
+						"format=zip\n" +
+						"chunk-store=server\n" +
+						"chunk-size=256\n" +
+						"snapshot-compress=false\n" +
+						"saved-pattern=Saved the game\n" +
+						"restore=staged\n" +
+						"restore-checksum=false\n" +
+						"\n" +
+						"[Hibernation]\n" +
+						"enabled=true\n" +
+						"interval=60\n" +
+						"wake-timeout=300\n" +
+						"\n" +
+						"[AppCDS]\n" +
+						"enabled=false\n" +
+						"\n" +
+						"[Shutdown]\n" +
+						"stop-timeout=60\n" +
+						"term-timeout=10";
 				f.write(defaultConfig.getBytes("UTF-8"));
 				f.flush();
 				f.close();
@@ -201,6 +342,20 @@ public class Main {
 		return true;
 	}
 	
+	/**
+	 * Reads a value from the settings file.
+	 * @param section
+	 * @param key
+	 * @param def Fallback, if the setting is missing (e.g. in settings files of older versions)
+	 * @return
+	 */
+	public static String getSetting(String section, String key, String def) {
+		String s = config == null ? null : config.get(section, key);
+		if(s == null || s.trim().isEmpty())
+			return def;
+		return s.trim();
+	}
+	
 	/**
 	 * Initializes all directories according to the settings file.
 	 * Obviously: The settings file must have been loaded beforehand.
@@ -244,10 +399,17 @@ public class Main {
 	 * Initializes servers in the deployment directory.
 	 */
 	private static void loadServers() {
-		servers = new ArrayList<Server>();
+		try {
+			configWatcher = new ConfigWatcher();
+			servers.addListener(configWatcher);
+		} catch (IOException e) {
+			System.err.println("[!] Couldn't watch the server.ini files, changes are checked by modification time.");
+			e.printStackTrace();
+		}
 		for(File f : deploymentDir.listFiles()) {
 			if(!f.isDirectory())
 				continue;
+			StagedRestore.recover(f);
 			if(!Arrays.asList(f.list()).contains("files"))
 				continue;
 			try {
@@ -256,5 +418,9 @@ public class Main {
 				continue;
 			}
 		}
+		
+		allocator = new Allocator(getSetting("Limits", "port-range", "25000-25999"));
+		allocator.init(deploymentDir, servers);
+		servers.addListener(allocator);
 	}
 }
@@ -0,0 +1,197 @@
+package zombie.limgr;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps the memory of all running servers within a host budget.
+ * A server reserves its Memory (-Xmx) plus [Limits] memory-overhead percent (at least
+ * memory-overhead-min MB) for non-heap memory while running. The budget is [Limits] memory-budget
+ * in MB, or "auto" for MemTotal of /proc/meminfo minus memory-reserve MB for the system.
+ * Starts that don't fit are refused or, with memory-policy=queue, started as soon as enough
+ * memory has been released.
+ */
+public class MemoryAdmission {
+
+	public enum Result {
+		ADMITTED,
+		QUEUED,
+		REFUSED
+	}
+
+	private final long budget; //MB, 0 = unlimited
+	private final int overhead; //Percent
+	private final long overheadMin; //MB
+	private final boolean queue;
+	private boolean shutdown = false;
+	private long committed = 0;
+	private final Map<Integer, Long> reservations = new LinkedHashMap<Integer, Long>();
+	private final ArrayDeque<Server> waiting = new ArrayDeque<Server>();
+	private final ExecutorService launcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "MemoryAdmission");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	public MemoryAdmission() {
+		long budget = 0, reserve = 1024, min = 128;
+		int overhead = 25;
+		String b = Main.getSetting("Limits", "memory-budget", "auto");
+		try {
+			reserve = Long.parseLong(Main.getSetting("Limits", "memory-reserve", "1024"));
+			overhead = Integer.parseInt(Main.getSetting("Limits", "memory-overhead", "25"));
+			min = Long.parseLong(Main.getSetting("Limits", "memory-overhead-min", "128"));
+			if(b.equalsIgnoreCase("auto")) {
+				long total = readMemTotal();
+				budget = total > 0 ? Math.max(0, total - reserve) : 0;
+			}else {
+				budget = Long.parseLong(b);
+			}
+		}catch (NumberFormatException e) {
+			System.err.println("[!] Invalid [Limits] memory settings in config.ini. Use fallback: memory-budget=auto, memory-reserve=1024, memory-overhead=25, memory-overhead-min=128");
+			long total = readMemTotal();
+			budget = total > 0 ? Math.max(0, total - 1024) : 0;
+			overhead = 25;
+			min = 128;
+		}
+		this.budget = budget;
+		this.overhead = Math.max(0, overhead);
+		this.overheadMin = Math.max(0, min);
+		this.queue = Main.getSetting("Limits", "memory-policy", "refuse").equalsIgnoreCase("queue");
+	}
+
+	/**
+	 * @return MemTotal of /proc/meminfo in MB, 0 if unknown
+	 */
+	private static long readMemTotal() {
+		try {
+			for(String line : new String(Files.readAllBytes(Paths.get("/proc/meminfo")), StandardCharsets.US_ASCII).split("\n"))
+				if(line.startsWith("MemTotal:"))
+					return Long.parseLong(line.substring(9).replace("kB", "").trim()) / 1024;
+		}catch (IOException | NumberFormatException e) {}
+		return 0;
+	}
+
+	/**
+	 * @param srv
+	 * @return MB the server needs while running
+	 */
+	public long getDemand(Server srv) {
+		long heap = srv.getMemory();
+		return heap + Math.max(this.overheadMin, heap * this.overhead / 100);
+	}
+
+	/**
+	 * Reserves the memory for a start.
+	 * @param srv
+	 * @return QUEUED if the server will be started by {@link Server#launch()} later
+	 */
+	public synchronized Result admit(Server srv) {
+		if(this.reservations.containsKey(srv.getID()))
+			return Result.ADMITTED;
+		long need = this.getDemand(srv);
+		if(this.budget <= 0 || (this.waiting.isEmpty() && this.committed + need <= this.budget)) {
+			this.reserve(srv, need);
+			return Result.ADMITTED;
+		}
+		if(this.queue && !this.shutdown && need <= this.budget) {
+			if(!this.waiting.contains(srv))
+				this.waiting.addLast(srv);
+			System.out.println("[Server # "+srv.getID()+"] Not enough memory ("+need+"M needed, "+this.getFree()+"M free), start queued.");
+			return Result.QUEUED;
+		}
+		System.err.println("[Server # "+srv.getID()+"] [!] Not enough memory ("+need+"M needed, "+this.getFree()+"M of "+this.budget+"M free), start refused.");
+		return Result.REFUSED;
+	}
+
+	private void reserve(Server srv, long mb) {
+		this.reservations.put(srv.getID(), mb);
+		this.committed += mb;
+	}
+
+	/**
+	 * Gives the memory of a server back, called when it has exited or couldn't be started.
+	 * Queued servers that fit now are started.
+	 * @param srv
+	 */
+	public synchronized void release(Server srv) {
+		Long mb = this.reservations.remove(srv.getID());
+		if(mb != null)
+			this.committed -= mb;
+		if(this.shutdown)
+			return;
+		Iterator<Server> it = this.waiting.iterator();
+		while(it.hasNext()) {
+			final Server next = it.next();
+			long need = this.getDemand(next);
+			if(this.committed + need > this.budget)
+				break; //First in, first out
+			it.remove();
+			this.reserve(next, need);
+			this.launcher.execute(new Runnable() {
+				public void run() {
+					if(!next.launch())
+						release(next);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Removes a server from the queue.
+	 * @param srv
+	 * @return false if it wasn't queued
+	 */
+	public synchronized boolean cancel(Server srv) {
+		return this.waiting.remove(srv);
+	}
+
+	/**
+	 * Drops all queued starts and stops the launcher, so stopping the servers on exit
+	 * doesn't start queued ones.
+	 */
+	public synchronized void shutdown() {
+		this.shutdown = true;
+		for(Server srv : this.waiting)
+			srv.setState(Server.State.OFFLINE);
+		this.waiting.clear();
+		this.launcher.shutdownNow();
+	}
+
+	public synchronized boolean isQueued(Server srv) {
+		return this.waiting.contains(srv);
+	}
+
+	/**
+	 * @return Budget in MB, 0 if unlimited
+	 */
+	public long getBudget() {
+		return this.budget;
+	}
+
+	/**
+	 * @return Reserved memory of all running servers in MB
+	 */
+	public synchronized long getCommitted() {
+		return this.committed;
+	}
+
+	public synchronized long getFree() {
+		return Math.max(0, this.budget - this.committed);
+	}
+
+	public synchronized int getQueueLength() {
+		return this.waiting.size();
+	}
+}
@@ -0,0 +1,133 @@
+package zombie.limgr;
+
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.ini4j.Ini;
+
+/**
+ * Mirrors the output of the servers to the stdout of the manager without making the
+ * process readers wait on the terminal. Lines are put into a lock-free queue and a single
+ * writer thread prints them in batches.
+ * If the queue is full, lines are either dropped (policy "drop") or the
+ * caller waits until there is room again (policy "block").
+ */
+public class OutputMirror {
+
+	private PrintStream out;
+	private boolean enabled;
+	private boolean block;
+	private int capacity;
+	private int batch;
+
+	private ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<String>();
+	private AtomicInteger size = new AtomicInteger();
+	private AtomicLong dropped = new AtomicLong();
+	private volatile boolean idle = false;
+	private Thread writer;
+
+	/**
+	 * Creates the mirror according to the [Output] section of the config.ini
+	 * @param config
+	 * @param out Stream to mirror into
+	 */
+	public OutputMirror(Ini config, PrintStream out) {
+		this.out = out;
+		this.enabled = Main.getSetting("Output", "mirror-servers", "true").equalsIgnoreCase("true");
+		this.block = Main.getSetting("Output", "mirror-policy", "drop").equalsIgnoreCase("block");
+		try {
+			this.capacity = Math.max(1, Integer.parseInt(Main.getSetting("Output", "mirror-queue", "10000")));
+			this.batch = Math.max(1, Integer.parseInt(Main.getSetting("Output", "mirror-batch", "512")));
+		}catch (NumberFormatException e) {
+			System.err.println("[!] Invalid mirror-queue / mirror-batch in config.ini. Use fallback: 10000 / 512");
+			this.capacity = 10000;
+			this.batch = 512;
+		}
+		if(this.enabled) {
+			this.writer = new Thread(new Runnable() {
+				public void run() {
+					while(true)
+						if(!drain())
+							park();
+				}
+			}, "OutputMirror");
+			this.writer.setDaemon(true);
+			this.writer.start();
+		}
+	}
+
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	/**
+	 * Queues a line for the stdout.
+	 * @param s
+	 */
+	public void println(String s) {
+		if(!this.enabled)
+			return;
+		if(this.size.incrementAndGet() > this.capacity) {
+			if(!this.block) {
+				this.size.decrementAndGet();
+				this.dropped.incrementAndGet();
+				return;
+			}
+			//Backpressure: wait for the writer to make room
+			while(this.size.get() > this.capacity) {
+				LockSupport.unpark(this.writer);
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+			}
+		}
+		this.queue.add(s);
+		if(this.idle)
+			LockSupport.unpark(this.writer);
+	}
+
+	private void park() {
+		this.idle = true;
+		if(this.queue.isEmpty())
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+		this.idle = false;
+	}
+
+	/**
+	 * Writes up to one batch of queued lines.
+	 * @return false if there was nothing to write
+	 */
+	private boolean drain() {
+		StringBuilder sb = null;
+		int n = 0;
+		String s;
+		while(n < this.batch && (s = this.queue.poll()) != null) {
+			if(sb == null)
+				sb = new StringBuilder();
+			sb.append(s).append(System.lineSeparator());
+			n++;
+		}
+		this.size.addAndGet(-n);
+		long d = this.dropped.getAndSet(0);
+		if(d > 0) {
+			if(sb == null)
+				sb = new StringBuilder();
+			sb.append("[i] ").append(d).append(" lines of server output were not mirrored (queue full).").append(System.lineSeparator());
+		}
+		if(sb == null)
+			return false;
+		this.out.print(sb);
+		this.out.flush();
+		return true;
+	}
+
+	/**
+	 * Writes everything that is still queued. (e.g. on shutdown)
+	 */
+	public void flush() {
+		if(this.enabled)
+			while(this.drain());
+	}
+}
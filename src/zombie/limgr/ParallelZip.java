@@ -0,0 +1,492 @@
+package zombie.limgr;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Enumeration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Writes the same ZIP archives as {@link Util#mkzip(File, File)}, compressed on all cores.
+ * Files are read in blocks of [Backup] block-size KB. Each block is deflated on a fork-join pool
+ * ([Backup] threads, 0 = one per core) with compression level [Backup] level and the end of the
+ * previous block as dictionary, then the blocks are appended in order (like pigz does).
+ * The result is a standard ZIP (deflate, data descriptors, ZIP64 above 4 GB or 65535 entries)
+ * that {@link Util#unzip(File, File)} and the usual tools can read.
+ */
+public class ParallelZip {
+
+	private static final int DICTIONARY = 32768; //Window of deflate
+	private static final long MAX32 = 0xFFFFFFFFL;
+
+	private final int threads;
+	private final int level;
+	private final int blockSize;
+
+	/**
+	 * @param threads 0 = one per core
+	 * @param level 0-9
+	 * @param blockSize Bytes
+	 */
+	public ParallelZip(int threads, int level, int blockSize) {
+		this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		this.level = Math.max(0, Math.min(9, level));
+		this.blockSize = Math.max(DICTIONARY, blockSize);
+	}
+
+	/**
+	 * @return Writer with the [Backup] settings of the config.ini
+	 */
+	public static ParallelZip fromConfig() {
+		try {
+			return new ParallelZip(Integer.parseInt(Main.getSetting("Backup", "threads", "0")),
+					Integer.parseInt(Main.getSetting("Backup", "level", "6")),
+					Integer.parseInt(Main.getSetting("Backup", "block-size", "1024")) * 1024);
+		}catch (NumberFormatException e) {
+			System.err.println("[!] Invalid [Backup] threads / level / block-size in config.ini. Use fallback: 0 / 6 / 1024");
+			return new ParallelZip(0, 6, 1024 * 1024);
+		}
+	}
+
+	/**
+	 * @return true if backups are written by this class, false for [Backup] writer=legacy
+	 */
+	public static boolean isEnabled() {
+		return !Main.getSetting("Backup", "writer", "parallel").equalsIgnoreCase("legacy");
+	}
+
+	public int getThreads() {
+		return this.threads;
+	}
+
+	public int getLevel() {
+		return this.level;
+	}
+
+	public int getBlockSize() {
+		return this.blockSize;
+	}
+
+	/**
+	 * Zips the content of a folder.
+	 * @param folder
+	 * @param zipfile ZIP file to be created
+	 * @return true if successful
+	 */
+	public boolean zip(File folder, File zipfile) {
+		ForkJoinPool pool = new ForkJoinPool(this.threads);
+		try (CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(zipfile), 65536))) {
+			Job job = new Job(pool, out);
+			job.addDir(folder, folder);
+			job.drain(0);
+			job.writeCentralDirectory();
+			return true;
+		} catch (IOException e) {
+			System.err.println("[!] Error while compressing. (IOException)");
+			e.printStackTrace();
+			return false;
+		} catch (RuntimeException e) {
+			System.err.println("[!] Error while compressing.");
+			e.printStackTrace();
+			return false;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static class Entry {
+		final String name;
+		final long dosTime;
+		long crc, size, csize, offset;
+
+		Entry(String name, long time) {
+			this.name = name;
+			this.dosTime = dosTime(time);
+		}
+
+		boolean isZip64() {
+			return this.size >= MAX32 || this.csize >= MAX32 || this.offset >= MAX32;
+		}
+	}
+
+	/**
+	 * End of the data of an entry, the data descriptor follows.
+	 */
+	private static class End {
+		final Entry entry;
+
+		End(Entry entry) {
+			this.entry = entry;
+		}
+	}
+
+	/**
+	 * A part of a file, deflated on the pool.
+	 */
+	private class Block implements Callable<byte[]> {
+		private byte[] data;
+		private byte[] dictionary;
+		private final boolean last;
+		final int length;
+		ForkJoinTask<byte[]> task;
+
+		Block(byte[] data, byte[] dictionary, boolean last) {
+			this.data = data;
+			this.dictionary = dictionary;
+			this.last = last;
+			this.length = data.length;
+		}
+
+		@Override
+		public byte[] call() {
+			Deflater d = new Deflater(level, true);
+			try {
+				if(this.dictionary != null)
+					d.setDictionary(this.dictionary, Math.max(0, this.dictionary.length - DICTIONARY), Math.min(DICTIONARY, this.dictionary.length));
+				d.setInput(this.data);
+				ByteArrayOutputStream out = new ByteArrayOutputStream(this.data.length / 2 + 64);
+				byte[] buf = new byte[Math.min(65536, this.data.length + 1024)];
+				int n;
+				if(this.last) {
+					d.finish();
+					while(!d.finished()) {
+						n = d.deflate(buf);
+						out.write(buf, 0, n);
+					}
+				}else {
+					//Ends on a byte boundary without the final bit, so the next block can be appended
+					do {
+						n = d.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+						out.write(buf, 0, n);
+					}while(n == buf.length);
+				}
+				return out.toByteArray();
+			}finally {
+				d.end();
+				this.data = null;
+				this.dictionary = null;
+			}
+		}
+	}
+
+	/**
+	 * State of one archive: reads the files, hands the blocks to the pool and writes the
+	 * results in order, with at most about two blocks per thread in memory.
+	 */
+	private class Job {
+		private final ForkJoinPool pool;
+		private final CountingOutputStream out;
+		private final ArrayList<Entry> entries = new ArrayList<Entry>();
+		private final ArrayDeque<Object> pending = new ArrayDeque<Object>(); //Entry (header), Block, End (descriptor)
+		private final long maxPending;
+		private long pendingBytes = 0;
+		private Entry current;
+
+		Job(ForkJoinPool pool, CountingOutputStream out) {
+			this.pool = pool;
+			this.out = out;
+			this.maxPending = (long) threads * blockSize * 2;
+		}
+
+		void addDir(File basedir, File dir) throws IOException {
+			File[] files = dir.listFiles();
+			if(files == null)
+				throw new IOException("Couldn't list "+dir.getPath());
+			for(File f : files) {
+				if(f.isDirectory())
+					this.addDir(basedir, f);
+				else
+					this.addFile(f, basedir.toURI().relativize(f.toURI()).getPath());
+			}
+		}
+
+		private void addFile(File f, String name) throws IOException {
+			Entry e = new Entry(name, f.lastModified());
+			this.entries.add(e);
+			this.pending.addLast(e);
+			CRC32 crc = new CRC32();
+			try (InputStream in = new FileInputStream(f)) {
+				byte[] cur = read(in, (int) Math.min(blockSize, f.length() + 1));
+				byte[] previous = null;
+				while(true) {
+					crc.update(cur, 0, cur.length);
+					e.size += cur.length;
+					byte[] next = cur.length == blockSize ? read(in, blockSize) : new byte[0];
+					Block b = new Block(cur, previous, next.length == 0);
+					b.task = this.pool.submit(b);
+					this.pending.addLast(b);
+					this.pendingBytes += b.length;
+					this.drain(this.maxPending);
+					if(next.length == 0)
+						break;
+					previous = cur;
+					cur = next;
+				}
+			}
+			e.crc = crc.getValue();
+			this.pending.addLast(new End(e));
+		}
+
+		/**
+		 * Writes finished blocks until no more than the given amount of data is pending.
+		 * @param keep Bytes
+		 */
+		void drain(long keep) throws IOException {
+			while(!this.pending.isEmpty() && (this.pendingBytes > keep || this.pending.size() > threads * 64 || keep == 0)) {
+				Object o = this.pending.pollFirst();
+				if(o instanceof Entry) {
+					this.current = (Entry) o;
+					this.current.offset = this.out.count;
+					this.writeLocalHeader(this.current);
+				}else if(o instanceof Block) {
+					Block b = (Block) o;
+					byte[] data = b.task.join();
+					this.out.write(data);
+					this.current.csize += data.length;
+					this.pendingBytes -= b.length;
+				}else {
+					this.writeDescriptor(((End) o).entry);
+				}
+			}
+		}
+
+		private void writeLocalHeader(Entry e) throws IOException {
+			byte[] name = e.name.getBytes(StandardCharsets.UTF_8);
+			this.out.writeInt(0x04034b50);
+			this.out.writeShort(20); //Version needed
+			this.out.writeShort(0x0808); //Data descriptor, UTF-8 names
+			this.out.writeShort(8); //Deflated
+			this.out.writeInt(e.dosTime);
+			this.out.writeInt(0); //CRC and sizes in the descriptor
+			this.out.writeInt(0);
+			this.out.writeInt(0);
+			this.out.writeShort(name.length);
+			this.out.writeShort(0);
+			this.out.write(name);
+		}
+
+		private void writeDescriptor(Entry e) throws IOException {
+			this.out.writeInt(0x08074b50);
+			this.out.writeInt(e.crc);
+			if(e.size > MAX32 || e.csize > MAX32) { //Same rule as ZipInputStream
+				this.out.writeLong(e.csize);
+				this.out.writeLong(e.size);
+			}else {
+				this.out.writeInt(e.csize);
+				this.out.writeInt(e.size);
+			}
+		}
+
+		void writeCentralDirectory() throws IOException {
+			long start = this.out.count;
+			for(Entry e : this.entries) {
+				byte[] name = e.name.getBytes(StandardCharsets.UTF_8);
+				ByteArrayOutputStream extra = new ByteArrayOutputStream();
+				if(e.isZip64()) {
+					CountingOutputStream x = new CountingOutputStream(extra);
+					x.writeShort(0x0001);
+					x.writeShort((e.size >= MAX32 ? 8 : 0) + (e.csize >= MAX32 ? 8 : 0) + (e.offset >= MAX32 ? 8 : 0));
+					if(e.size >= MAX32)
+						x.writeLong(e.size);
+					if(e.csize >= MAX32)
+						x.writeLong(e.csize);
+					if(e.offset >= MAX32)
+						x.writeLong(e.offset);
+					x.flush();
+				}
+				int version = e.isZip64() ? 45 : 20;
+				this.out.writeInt(0x02014b50);
+				this.out.writeShort(version); //Made by
+				this.out.writeShort(version); //Needed
+				this.out.writeShort(0x0808);
+				this.out.writeShort(8);
+				this.out.writeInt(e.dosTime);
+				this.out.writeInt(e.crc);
+				this.out.writeInt(Math.min(e.csize, MAX32));
+				this.out.writeInt(Math.min(e.size, MAX32));
+				this.out.writeShort(name.length);
+				this.out.writeShort(extra.size());
+				this.out.writeShort(0); //Comment
+				this.out.writeShort(0); //Disk
+				this.out.writeShort(0); //Internal attributes
+				this.out.writeInt(0); //External attributes
+				this.out.writeInt(Math.min(e.offset, MAX32));
+				this.out.write(name);
+				extra.writeTo(this.out);
+			}
+			long end = this.out.count;
+			long size = end - start;
+			int count = this.entries.size();
+			if(count >= 0xFFFF || start >= MAX32 || size >= MAX32) {
+				this.out.writeInt(0x06064b50); //ZIP64 end of central directory
+				this.out.writeLong(44);
+				this.out.writeShort(45);
+				this.out.writeShort(45);
+				this.out.writeInt(0);
+				this.out.writeInt(0);
+				this.out.writeLong(count);
+				this.out.writeLong(count);
+				this.out.writeLong(size);
+				this.out.writeLong(start);
+				this.out.writeInt(0x07064b50); //Locator
+				this.out.writeInt(0);
+				this.out.writeLong(end);
+				this.out.writeInt(1);
+			}
+			this.out.writeInt(0x06054b50);
+			this.out.writeShort(0);
+			this.out.writeShort(0);
+			this.out.writeShort(Math.min(count, 0xFFFF));
+			this.out.writeShort(Math.min(count, 0xFFFF));
+			this.out.writeInt(Math.min(size, MAX32));
+			this.out.writeInt(Math.min(start, MAX32));
+			this.out.writeShort(0);
+		}
+	}
+
+	/**
+	 * Reads up to blockSize bytes.
+	 * @param expected Size to start with, small files don't need a whole block
+	 * @return The bytes read, shorter than blockSize only at the end of the stream
+	 */
+	private byte[] read(InputStream in, int expected) throws IOException {
+		byte[] b = new byte[Math.max(1, expected)];
+		int n = 0, r;
+		while((r = in.read(b, n, b.length - n)) >= 0) {
+			n += r;
+			if(n == b.length) {
+				if(n == this.blockSize)
+					break;
+				byte[] grown = new byte[(int) Math.min(this.blockSize, (long) n * 2)]; //File has grown
+				System.arraycopy(b, 0, grown, 0, n);
+				b = grown;
+			}
+		}
+		if(n == b.length)
+			return b;
+		byte[] s = new byte[n];
+		System.arraycopy(b, 0, s, 0, n);
+		return s;
+	}
+
+	private static long dosTime(long time) {
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(time);
+		int year = c.get(Calendar.YEAR);
+		if(year < 1980)
+			return (1 << 21) | (1 << 16); //1980-01-01
+		return (long) (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+				| c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+	}
+
+	/**
+	 * Little endian output that knows its position.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			this.out.write(b);
+			this.count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.out.write(b, off, len);
+			this.count += len;
+		}
+
+		void writeShort(int v) throws IOException {
+			this.write(v & 0xFF);
+			this.write((v >>> 8) & 0xFF);
+		}
+
+		void writeInt(long v) throws IOException {
+			this.writeShort((int) (v & 0xFFFF));
+			this.writeShort((int) ((v >>> 16) & 0xFFFF));
+		}
+
+		void writeLong(long v) throws IOException {
+			this.writeInt(v & MAX32);
+			this.writeInt(v >>> 32);
+		}
+	}
+
+	/**
+	 * Compares {@link Util#mkzip(File, File)} with this writer on a folder and checks the result.
+	 * The archives are written to dir and deleted afterwards.
+	 * @param folder
+	 * @param dir
+	 * @param out
+	 * @return false if an archive couldn't be written or read
+	 */
+	public boolean benchmark(File folder, File dir, PrintStream out) {
+		File legacy = new File(dir, ".bench-legacy.zip");
+		File parallel = new File(dir, ".bench-parallel.zip");
+		try {
+			long t0 = System.nanoTime();
+			if(!Util.mkzip(folder, legacy))
+				return false;
+			long t1 = System.nanoTime();
+			if(!this.zip(folder, parallel))
+				return false;
+			long t2 = System.nanoTime();
+
+			long raw = 0;
+			int entries = 0;
+			try (ZipFile z = new ZipFile(parallel)) {
+				Enumeration<? extends ZipEntry> en = z.entries();
+				while(en.hasMoreElements()) {
+					raw += en.nextElement().getSize();
+					entries++;
+				}
+			}
+			try (ZipInputStream zis = new ZipInputStream(new FileInputStream(parallel))) {
+				byte[] buf = new byte[65536];
+				while(zis.getNextEntry() != null)
+					while(zis.read(buf) >= 0); //Checks the CRC
+			}
+			out.println("== BACKUP BENCHMARK ==");
+			out.println(entries+" files, "+ResourceSampler.formatBytes(raw));
+			out.println("Legacy:   "+result(raw, legacy.length(), t1 - t0)+" - 1 thread");
+			out.println("Parallel: "+result(raw, parallel.length(), t2 - t1)+" - "+this.threads+" threads, level "+this.level+", blocks of "+this.blockSize / 1024+"K");
+			out.println("Speedup: "+String.format("%.2fx", (t1 - t0) / (double) Math.max(1, t2 - t1))+" - Archive verified.");
+			return true;
+		} catch (IOException e) {
+			out.println("[!] Parallel archive is invalid: "+e.getMessage());
+			return false;
+		} finally {
+			legacy.delete();
+			parallel.delete();
+		}
+	}
+
+	private static String result(long raw, long size, long nanos) {
+		double s = nanos / 1e9;
+		return String.format("%.1fs", s)+", "+ResourceSampler.formatBytes(size)+" ("+(raw > 0 ? size * 100 / raw : 0)+"%), "
+				+String.format("%.1f MB/s", raw / 1048576.0 / Math.max(0.001, s));
+	}
+}
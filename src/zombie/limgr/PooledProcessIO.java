@@ -0,0 +1,218 @@
+package zombie.limgr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * I/O engine serving all processes from a small, fixed set of threads.
+ * Process pipes can't be registered with a Selector, so each worker polls the pipes
+ * assigned to it with available() and only reads what is there, never blocking on a single process.
+ * Idle workers park for the poll interval; sending a command wakes the worker up immediately.
+ * Commands are written on the sending thread, so a process with a full stdin never holds up a worker.
+ */
+public class PooledProcessIO extends ProcessIO {
+
+	private static final int READ_BUFFER = 8192;
+	private static final int MAX_LINE = 64 * 1024;
+
+	private Worker[] workers;
+	private long interval;
+
+	/**
+	 * @param threads Number of worker threads
+	 * @param interval Poll interval in ms when all pipes are idle
+	 */
+	public PooledProcessIO(int threads, long interval) {
+		this.interval = Math.max(1, interval);
+		this.workers = new Worker[Math.max(1, threads)];
+		for(int i = 0; i < this.workers.length; i++) {
+			this.workers[i] = new Worker();
+			Thread t = new Thread(this.workers[i], "ProcessIO-"+i);
+			t.setDaemon(true);
+			this.workers[i].thread = t;
+			t.start();
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "pooled";
+	}
+
+	@Override
+	public Channel attach(Process process, String name, Handler handler) {
+		Worker w = this.workers[0];
+		for(Worker ww : this.workers)
+			if(ww.load.get() < w.load.get())
+				w = ww;
+		Pipe p = new Pipe(process, name, handler, w);
+		w.load.incrementAndGet();
+		w.added.add(p);
+		LockSupport.unpark(w.thread);
+		return p;
+	}
+
+	/**
+	 * State of one attached process.
+	 */
+	private static class Pipe implements Channel {
+		final Process process;
+		final String name;
+		final Handler handler;
+		final Worker worker;
+		final InputStream in;
+		final OutputStream out;
+		final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+		volatile boolean closed = false;
+		volatile boolean destroying = false;
+		boolean eof = false; //Output stream closed, e.g. by Process.destroy(), or failed
+
+		Pipe(Process process, String name, Handler handler, Worker worker) {
+			this.process = process;
+			this.name = name;
+			this.handler = handler;
+			this.worker = worker;
+			this.in = process.getInputStream();
+			this.out = process.getOutputStream();
+		}
+
+		@Override
+		public boolean send(String cmd) {
+			if(this.closed)
+				return false;
+			synchronized (this.out) {
+				try {
+					this.out.write((cmd+"\n").getBytes(Charset.defaultCharset()));
+					this.out.flush();
+				}catch (IOException e) {
+					System.err.println("[!] Couldn't send command to "+this.name+": "+e.getMessage());
+					return false;
+				}
+			}
+			LockSupport.unpark(this.worker.thread); //Read the response right away
+			return true;
+		}
+
+		@Override
+		public void destroying() {
+			this.destroying = true;
+		}
+	}
+
+	private class Worker implements Runnable {
+
+		Thread thread;
+		final AtomicInteger load = new AtomicInteger();
+		final ConcurrentLinkedQueue<Pipe> added = new ConcurrentLinkedQueue<Pipe>();
+		final ArrayList<Pipe> pipes = new ArrayList<Pipe>();
+		final byte[] buf = new byte[READ_BUFFER];
+		final Charset charset = Charset.defaultCharset();
+
+		@Override
+		public void run() {
+			while(true) {
+				Pipe n;
+				while((n = this.added.poll()) != null)
+					this.pipes.add(n);
+
+				boolean busy = false;
+				Iterator<Pipe> it = this.pipes.iterator();
+				while(it.hasNext()) {
+					Pipe p = it.next();
+					try {
+						busy |= this.service(p);
+					}catch (Throwable t) {
+						System.err.println("[!] I/O error ("+p.name+")");
+						t.printStackTrace();
+						p.eof = true; //Stop reading, finished once the process has exited
+					}
+					if(p.closed) {
+						it.remove();
+						this.load.decrementAndGet();
+					}
+				}
+				if(!busy)
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(interval));
+			}
+		}
+
+		/**
+		 * Reads available output of a process.
+		 * @return true if anything was transferred
+		 */
+		private boolean service(Pipe p) throws IOException {
+			if(!p.eof) {
+				try {
+					int available = p.in.available();
+					if(available > 0) {
+						int r = p.in.read(this.buf, 0, Math.min(available, this.buf.length));
+						if(r > 0) {
+							this.split(p, r);
+							return true;
+						}
+					}
+				}catch (IOException e) {
+					//destroy() closes the streams, wait for the exit without blocking the worker
+					if(!p.destroying && p.process.isAlive())
+						throw e;
+					p.eof = true;
+				}
+			}
+			if(!p.process.isAlive() && (p.eof || p.in.available() <= 0)) {
+				this.finish(p);
+				return true;
+			}
+			return false;
+		}
+
+		private void split(Pipe p, int len) {
+			for(int i = 0; i < len; i++) {
+				byte b = this.buf[i];
+				if(b == '\n' || p.line.size() >= MAX_LINE) {
+					this.emit(p);
+					if(b == '\n')
+						continue;
+				}
+				p.line.write(b);
+			}
+		}
+
+		private void emit(Pipe p) {
+			String s = new String(p.line.toByteArray(), this.charset);
+			p.line.reset();
+			if(s.endsWith("\r"))
+				s = s.substring(0, s.length() - 1);
+			p.handler.onLine(s);
+		}
+
+		private void finish(Pipe p) {
+			if(p.closed)
+				return;
+			p.closed = true;
+			if(p.line.size() > 0)
+				this.emit(p);
+			int code = -1;
+			try {
+				code = p.process.waitFor();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			try {
+				p.out.close();
+			} catch (IOException e) {}
+			try {
+				p.in.close();
+			} catch (IOException e) {}
+			p.handler.onExit(code);
+		}
+	}
+}
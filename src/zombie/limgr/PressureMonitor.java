@@ -0,0 +1,290 @@
+package zombie.limgr;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the pressure stall information (/proc/pressure/cpu, memory, io) and MemAvailable of
+ * /proc/meminfo every [Pressure] interval seconds.
+ * While the avg10 "some" value of a resource is above its threshold ([Pressure] cpu, memory, io
+ * in percent) or less than min-available MB are available, heavy jobs (backups, unzipping,
+ * autostarts) wait in a queue. One waiting job is let through per interval once the pressure
+ * has dropped, a job never waits longer than max-defer seconds.
+ * Jobs requested from the web interface or a console are queued with {@link #defer(String, Runnable)}
+ * and run on a separate thread, so the request returns right away.
+ */
+public class PressureMonitor implements Runnable {
+
+	private final boolean enabled;
+	private final long interval;
+	private final double cpuLimit;
+	private final double memoryLimit;
+	private final double ioLimit;
+	private final long minAvailable;
+	private final long maxDefer;
+	private final boolean psi;
+
+	private volatile double cpu = -1;
+	private volatile double memory = -1;
+	private volatile double io = -1;
+	private volatile long available = -1;
+
+	/**
+	 * A waiting job, either a thread blocked on the latch or a job to be run on the job thread.
+	 */
+	private static class Ticket {
+		final String what;
+		final Runnable job;
+		final CountDownLatch latch = new CountDownLatch(1);
+		final long t0 = System.currentTimeMillis();
+
+		Ticket(String what, Runnable job) {
+			this.what = what;
+			this.job = job;
+		}
+	}
+
+	private final ArrayDeque<Ticket> waiting = new ArrayDeque<Ticket>();
+	private ScheduledExecutorService executor;
+	private final ExecutorService jobs = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Deferred jobs");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	public PressureMonitor() {
+		this.enabled = Main.getSetting("Pressure", "enabled", "true").equalsIgnoreCase("true");
+		long interval = 2, minAvailable = 512, maxDefer = 600;
+		double cpu = 90, memory = 20, io = 50;
+		try {
+			interval = Long.parseLong(Main.getSetting("Pressure", "interval", "2"));
+			cpu = Double.parseDouble(Main.getSetting("Pressure", "cpu", "90"));
+			memory = Double.parseDouble(Main.getSetting("Pressure", "memory", "20"));
+			io = Double.parseDouble(Main.getSetting("Pressure", "io", "50"));
+			minAvailable = Long.parseLong(Main.getSetting("Pressure", "min-available", "512"));
+			maxDefer = Long.parseLong(Main.getSetting("Pressure", "max-defer", "600"));
+		}catch (NumberFormatException e) {
+			System.err.println("[!] Invalid [Pressure] settings in config.ini. Use fallback: interval=2, cpu=90, memory=20, io=50, min-available=512, max-defer=600");
+		}
+		this.interval = Math.max(1, interval);
+		this.cpuLimit = cpu;
+		this.memoryLimit = memory;
+		this.ioLimit = io;
+		this.minAvailable = minAvailable;
+		this.maxDefer = Math.max(1, maxDefer);
+		this.psi = new File("/proc/pressure/cpu").exists();
+	}
+
+	public void start() {
+		if(!this.enabled)
+			return;
+		if(!this.psi)
+			System.err.println("[!] /proc/pressure not available (kernel < 4.20 or psi=0), only MemAvailable is watched.");
+		this.run();
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "PressureMonitor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.executor.scheduleAtFixedRate(this, this.interval, this.interval, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void run() {
+		try {
+			if(this.psi) {
+				this.cpu = readSomeAvg10("/proc/pressure/cpu");
+				this.memory = readSomeAvg10("/proc/pressure/memory");
+				this.io = readSomeAvg10("/proc/pressure/io");
+			}
+			this.available = readMemAvailable();
+		}catch (RuntimeException e) { //An exception would cancel the schedule
+			System.err.println("[Pressure] [!] Couldn't read the pressure: "+e);
+		}
+		synchronized (this.waiting) {
+			if(!this.isUnderPressure() && !this.waiting.isEmpty())
+				this.release(this.waiting.poll());
+			Ticket t;
+			while((t = this.waiting.peek()) != null && System.currentTimeMillis() - t.t0 >= this.maxDefer * 1000) {
+				System.err.println("[Pressure] [!] "+t.what+" has waited "+this.maxDefer+"s, running anyway.");
+				this.release(this.waiting.poll());
+			}
+		}
+	}
+
+	private void release(final Ticket t) {
+		if(t.job == null) {
+			t.latch.countDown();
+			return;
+		}
+		this.jobs.execute(new Runnable() {
+			public void run() {
+				System.out.println("[Pressure] "+t.what+" continues after "+String.format("%.1fs", (System.currentTimeMillis() - t.t0) / 1000.0)+".");
+				try {
+					t.job.run();
+				}catch (Throwable e) {
+					System.err.println("[Pressure] [!] "+t.what+" failed.");
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Queues the ticket if the system is under pressure or other jobs are waiting.
+	 * @return false if it can run right away
+	 */
+	private boolean enqueue(Ticket t) {
+		if(!this.enabled)
+			return false;
+		synchronized (this.waiting) {
+			String reason = this.getReason();
+			if(reason == null && this.waiting.isEmpty())
+				return false;
+			this.waiting.addLast(t);
+			System.out.println("[Pressure] "+t.what+" deferred ("+(reason != null ? reason : "queue")+"). . .");
+			return true;
+		}
+	}
+
+	/**
+	 * @return true if a value is above its threshold
+	 */
+	public boolean isUnderPressure() {
+		return this.getReason() != null;
+	}
+
+	/**
+	 * @return Which resource is under pressure, NULL if none
+	 */
+	public String getReason() {
+		if(this.cpu > this.cpuLimit)
+			return "cpu "+this.cpu+"%";
+		if(this.memory > this.memoryLimit)
+			return "memory "+this.memory+"%";
+		if(this.io > this.ioLimit)
+			return "io "+this.io+"%";
+		if(this.available >= 0 && this.available < this.minAvailable)
+			return "available "+this.available+"M";
+		return null;
+	}
+
+	/**
+	 * Waits until there is no pressure, in order of arrival. Returns immediately if the system isn't under pressure.
+	 * Blocks up to max-defer seconds, so only for background threads (autostart, compression).
+	 * @param what Description of the job, for the log
+	 */
+	public void defer(String what) {
+		Ticket ticket = new Ticket(what, null);
+		if(!this.enqueue(ticket))
+			return;
+		try {
+			if(!ticket.latch.await(this.maxDefer + this.interval, TimeUnit.SECONDS))
+				System.err.println("[Pressure] [!] "+what+" has waited "+this.maxDefer+"s, running anyway.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}finally {
+			synchronized (this.waiting) {
+				this.waiting.remove(ticket);
+			}
+		}
+		System.out.println("[Pressure] "+what+" continues after "+String.format("%.1fs", (System.currentTimeMillis() - ticket.t0) / 1000.0)+".");
+	}
+
+	/**
+	 * Queues a job if the system is under pressure, it is run on the job thread once the pressure has dropped.
+	 * @param what Description of the job, for the log
+	 * @param job
+	 * @return true if the job has been queued, false if there is no pressure and the caller runs it now
+	 */
+	public boolean defer(String what, Runnable job) {
+		return this.enqueue(new Ticket(what, job));
+	}
+
+	/**
+	 * @return avg10 of the "some" line, -1 if not readable
+	 */
+	private static double readSomeAvg10(String path) {
+		String s = read(path);
+		if(s == null)
+			return -1;
+		for(String line : s.split("\n")) {
+			if(!line.startsWith("some "))
+				continue;
+			for(String f : line.split(" "))
+				if(f.startsWith("avg10="))
+					return Double.parseDouble(f.substring(6));
+		}
+		return -1;
+	}
+
+	/**
+	 * @return MemAvailable in MB, -1 if not readable
+	 */
+	private static long readMemAvailable() {
+		String s = read("/proc/meminfo");
+		if(s == null)
+			return -1;
+		for(String line : s.split("\n"))
+			if(line.startsWith("MemAvailable:"))
+				return Long.parseLong(line.substring(13).replace("kB", "").trim()) / 1024;
+		return -1;
+	}
+
+	private static String read(String path) {
+		try {
+			return new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.US_ASCII);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	/**
+	 * @return avg10 CPU pressure in percent, -1 if unknown
+	 */
+	public double getCpu() {
+		return this.cpu;
+	}
+
+	public double getMemory() {
+		return this.memory;
+	}
+
+	public double getIO() {
+		return this.io;
+	}
+
+	/**
+	 * @return MemAvailable in MB, -1 if unknown
+	 */
+	public long getAvailable() {
+		return this.available;
+	}
+
+	/**
+	 * @return Number of deferred jobs
+	 */
+	public int getQueueLength() {
+		synchronized (this.waiting) {
+			return this.waiting.size();
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package zombie.limgr;
+
+import org.ini4j.Ini;
+
+/**
+ * Engine that reads the output and writes the input of the server processes.
+ * Selected in the config.ini: [Process] io-engine = pooled / thread
+ */
+public abstract class ProcessIO {
+	
+	/**
+	 * Callbacks of an attached process. Called from the I/O engine, so they must return quickly.
+	 */
+	public interface Handler {
+		/**
+		 * A line the process has written to stdout/stderr, without line break.
+		 */
+		public void onLine(String line);
+		
+		/**
+		 * The process has exited and all of its output has been delivered.
+		 * @param exitCode
+		 */
+		public void onExit(int exitCode);
+	}
+	
+	/**
+	 * Connection to the stdin of an attached process.
+	 */
+	public interface Channel {
+		/**
+		 * Sends a line to the process.
+		 * @param line Without line break
+		 * @return false if the process is no longer attached.
+		 */
+		public boolean send(String line);
+		
+		/**
+		 * The process is about to be destroyed, its pipes may be closed from now on.
+		 */
+		public void destroying();
+	}
+	
+	/**
+	 * Starts handling the I/O of a process.
+	 * @param process
+	 * @param name Name used for threads and error messages
+	 * @param handler
+	 * @return Channel for the stdin of the process
+	 */
+	public abstract Channel attach(Process process, String name, Handler handler);
+	
+	/**
+	 * @return Name of this engine (as written in the config.ini)
+	 */
+	public abstract String getName();
+	
+	/**
+	 * Creates the engine configured in the config.ini
+	 * @param config
+	 * @return
+	 */
+	public static ProcessIO create(Ini config) {
+		String engine = Main.getSetting("Process", "io-engine", "pooled");
+		if(engine.equalsIgnoreCase("thread"))
+			return new ThreadedProcessIO();
+		if(!engine.equalsIgnoreCase("pooled"))
+			System.err.println("[!] Unknown io-engine \""+engine+"\" in config.ini. Use fallback: pooled");
+		int threads = 2;
+		long interval = 20;
+		try {
+			threads = Integer.parseInt(Main.getSetting("Process", "io-threads", "2"));
+			interval = Long.parseLong(Main.getSetting("Process", "io-poll-interval", "20"));
+		}catch (NumberFormatException e) {
+			System.err.println("[!] Invalid io-threads / io-poll-interval in config.ini. Use fallback: 2 / 20ms");
+		}
+		return new PooledProcessIO(threads, interval);
+	}
+}
@@ -0,0 +1,381 @@
+package zombie.limgr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples CPU, memory (RSS) and disk I/O of all running servers from /proc, including
+ * all child processes of the server. Runs on a single scheduled thread every [Stats] interval
+ * seconds and keeps the last [Stats] history samples per server in fixed-size ring buffers.
+ * Only works on Linux, elsewhere nothing is recorded.
+ */
+public class ResourceSampler implements Runnable, ServerRegistry.Listener {
+
+	private static final long CLK_TCK = getconf("CLK_TCK", 100); //USER_HZ
+	private static final long PAGE_SIZE = getconf("PAGESIZE", 4096); //64K on some arm64 / ppc64le kernels
+
+	/**
+	 * Ring buffers of one server. Values are written by the sampler thread only.
+	 */
+	public static class History {
+		private final long[] time;
+		private final float[] cpu;
+		private final long[] rss;
+		private final long[] read;
+		private final long[] write;
+		private int head = 0; //Next slot to write
+		private int count = 0;
+
+		//Totals of the previous sample, for the rates
+		private long lastTime = -1;
+		private long lastTicks;
+		private long lastRead;
+		private long lastWrite;
+
+		History(int size) {
+			this.time = new long[size];
+			this.cpu = new float[size];
+			this.rss = new long[size];
+			this.read = new long[size];
+			this.write = new long[size];
+		}
+
+		private synchronized void add(long time, long ticks, long rss, long read, long write) {
+			if(this.lastTime >= 0 && time > this.lastTime) {
+				double secs = (time - this.lastTime) / 1000.0;
+				int i = this.head;
+				this.time[i] = time;
+				this.cpu[i] = (float) (Math.max(0, ticks - this.lastTicks) * 100.0 / CLK_TCK / secs);
+				this.rss[i] = rss;
+				this.read[i] = (long) (Math.max(0, read - this.lastRead) / secs);
+				this.write[i] = (long) (Math.max(0, write - this.lastWrite) / secs);
+				this.head = (i + 1) % this.time.length;
+				if(this.count < this.time.length)
+					this.count++;
+			}
+			this.lastTime = time;
+			this.lastTicks = ticks;
+			this.lastRead = read;
+			this.lastWrite = write;
+		}
+
+		private synchronized void reset() {
+			this.lastTime = -1;
+		}
+
+		/**
+		 * @return The latest sample, NULL if there is none
+		 */
+		public synchronized Sample latest() {
+			if(this.count == 0)
+				return null;
+			return this.sample((this.head - 1 + this.time.length) % this.time.length);
+		}
+
+		/**
+		 * @param since Time in ms
+		 * @return All samples taken after the given time, oldest first
+		 */
+		public synchronized List<Sample> since(long since) {
+			ArrayList<Sample> l = new ArrayList<Sample>();
+			for(int n = this.count; n > 0; n--) {
+				int i = (this.head - n + this.time.length) % this.time.length;
+				if(this.time[i] > since)
+					l.add(this.sample(i));
+			}
+			return l;
+		}
+
+		private Sample sample(int i) {
+			return new Sample(this.time[i], this.cpu[i], this.rss[i], this.read[i], this.write[i]);
+		}
+	}
+
+	/**
+	 * Resource usage of a server at one point in time.
+	 */
+	public static class Sample {
+		public final long time;
+		public final float cpu; //Percent of one core
+		public final long rss; //Bytes
+		public final long read; //Bytes per second
+		public final long write; //Bytes per second
+
+		Sample(long time, float cpu, long rss, long read, long write) {
+			this.time = time;
+			this.cpu = cpu;
+			this.rss = rss;
+			this.read = read;
+			this.write = write;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("CPU %.1f%% - RAM %s - R %s/s - W %s/s", this.cpu, formatBytes(this.rss), formatBytes(this.read), formatBytes(this.write));
+		}
+	}
+
+	private final int size;
+	private final long interval;
+	private final boolean available;
+	private final ConcurrentHashMap<Integer, History> histories = new ConcurrentHashMap<Integer, History>();
+	private ScheduledExecutorService executor;
+
+	/**
+	 * @param interval Seconds between two samples
+	 * @param size Number of samples kept per server
+	 */
+	public ResourceSampler(long interval, int size) {
+		this.interval = Math.max(1, interval);
+		this.size = Math.max(1, size);
+		this.available = new File("/proc/self/stat").exists();
+	}
+
+	public void start() {
+		if(!this.available) {
+			System.err.println("[!] /proc not available, resource statistics disabled.");
+			return;
+		}
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ResourceSampler");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+		this.executor.scheduleAtFixedRate(this, this.interval, this.interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return Seconds between two samples
+	 */
+	public long getInterval() {
+		return this.interval;
+	}
+
+	/**
+	 * @param srv
+	 * @return The history of the server, NULL if nothing has been recorded
+	 */
+	public History get(Server srv) {
+		return this.histories.get(srv.getID());
+	}
+
+	/**
+	 * @param srv
+	 * @return The latest sample of a running server, NULL if not running or not sampled yet
+	 */
+	public Sample latest(Server srv) {
+		History h = this.histories.get(srv.getID());
+		if(h == null || srv.pid <= 0)
+			return null;
+		return h.latest();
+	}
+
+	@Override
+	public void onAdded(Server srv) {}
+
+	@Override
+	public void onRemoved(Server srv) {
+		this.histories.remove(srv.getID());
+	}
+
+	@Override
+	public void run() {
+		try {
+			long now = System.currentTimeMillis();
+			Map<Integer, List<Integer>> children = null;
+			for(Server srv : Main.servers) {
+				int pid = srv.pid;
+				History h = this.histories.get(srv.getID());
+				if(pid <= 0) {
+					if(h != null)
+						h.reset();
+					continue;
+				}
+				if(h == null) {
+					h = new History(this.size);
+					this.histories.put(srv.getID(), h);
+				}
+				List<Integer> tree = new ArrayList<Integer>();
+				tree.add(pid);
+				for(int i = 0; i < tree.size(); i++) {
+					List<Integer> c = readChildren(tree.get(i));
+					if(c == null) { //No /proc/<pid>/task/<tid>/children, use the parent IDs of all processes
+						if(children == null)
+							children = scanChildren();
+						c = children.get(tree.get(i));
+					}
+					if(c != null)
+						tree.addAll(c);
+				}
+				long ticks = 0, rss = 0, read = 0, write = 0;
+				for(int p : tree) {
+					String[] stat = readStat(p);
+					if(stat == null)
+						continue;
+					ticks += Long.parseLong(stat[11]) + Long.parseLong(stat[12]); //utime + stime
+					rss += Long.parseLong(stat[21]) * PAGE_SIZE;
+					long[] io = readIO(p);
+					read += io[0];
+					write += io[1];
+				}
+				h.add(now, ticks, rss, read, write);
+			}
+		}catch (Throwable t) {
+			System.err.println("[!] Error while sampling resource usage.");
+			t.printStackTrace();
+		}
+	}
+
+	/**
+	 * @param name
+	 * @param def
+	 * @return Value of "getconf name", def if it can't be determined
+	 */
+	private static long getconf(String name, long def) {
+		try {
+			Process p = new ProcessBuilder("getconf", name).redirectErrorStream(true).start();
+			BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()));
+			String line = r.readLine();
+			r.close();
+			if(p.waitFor(5, TimeUnit.SECONDS) && p.exitValue() == 0 && line != null)
+				return Long.parseLong(line.trim());
+		}catch (IOException | NumberFormatException e) { //No getconf, use the default
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return def;
+	}
+
+	/**
+	 * Fields of /proc/<pid>/stat after the command name (field 3 = index 0)
+	 * @return NULL if the process doesn't exist (anymore)
+	 */
+	private static String[] readStat(int pid) {
+		String s = read("/proc/"+pid+"/stat");
+		if(s == null)
+			return null;
+		int i = s.lastIndexOf(')'); //The name can contain spaces and brackets
+		if(i < 0)
+			return null;
+		String[] f = s.substring(i + 2).trim().split(" ");
+		return f.length > 21 ? f : null;
+	}
+
+	/**
+	 * @return read_bytes and write_bytes of /proc/<pid>/io, 0 if not readable
+	 */
+	private static long[] readIO(int pid) {
+		long[] r = new long[2];
+		String s = read("/proc/"+pid+"/io");
+		if(s == null)
+			return r;
+		for(String line : s.split("\n")) {
+			if(line.startsWith("read_bytes:"))
+				r[0] = Long.parseLong(line.substring(11).trim());
+			else if(line.startsWith("write_bytes:"))
+				r[1] = Long.parseLong(line.substring(12).trim());
+		}
+		return r;
+	}
+
+	/**
+	 * @return Child PIDs from /proc/<pid>/task/<tid>/children, NULL if the kernel doesn't provide it
+	 */
+	private static List<Integer> readChildren(int pid) {
+		String[] tasks = new File("/proc/"+pid+"/task").list();
+		if(tasks == null)
+			return new ArrayList<Integer>();
+		ArrayList<Integer> l = new ArrayList<Integer>();
+		for(String tid : tasks) {
+			File f = new File("/proc/"+pid+"/task/"+tid+"/children");
+			if(!f.exists())
+				return null;
+			String s = read(f.getPath());
+			if(s == null)
+				continue;
+			for(String c : s.trim().split(" "))
+				if(!c.isEmpty())
+					l.add(Integer.parseInt(c));
+		}
+		return l;
+	}
+
+	/**
+	 * @return Child PIDs of all processes, by parent PID
+	 */
+	private static Map<Integer, List<Integer>> scanChildren() {
+		HashMap<Integer, List<Integer>> m = new HashMap<Integer, List<Integer>>();
+		String[] procs = new File("/proc").list();
+		if(procs == null)
+			return m;
+		for(String p : procs) {
+			if(p.isEmpty() || !Character.isDigit(p.charAt(0)))
+				continue;
+			String[] stat = readStat(Integer.parseInt(p));
+			if(stat == null)
+				continue;
+			int ppid = Integer.parseInt(stat[1]);
+			List<Integer> l = m.get(ppid);
+			if(l == null)
+				m.put(ppid, l = new ArrayList<Integer>());
+			l.add(Integer.parseInt(p));
+		}
+		return m;
+	}
+
+	private static String read(String path) {
+		try {
+			return new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.US_ASCII);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the PID of a process. (Java 8 has no Process.pid(), so the field of the implementation is read)
+	 * @param p
+	 * @return 0 if unknown
+	 */
+	public static int getPid(Process p) {
+		try {
+			Method m = Process.class.getMethod("pid");
+			return ((Long) m.invoke(p)).intValue();
+		}catch (ReflectiveOperationException e) {}
+		try {
+			Field f = p.getClass().getDeclaredField("pid");
+			f.setAccessible(true);
+			return f.getInt(p);
+		}catch (ReflectiveOperationException | RuntimeException e) {
+			return 0;
+		}
+	}
+
+	public static String formatBytes(long b) {
+		if(b < 1024)
+			return b+"B";
+		if(b < 1024 * 1024)
+			return String.format("%.1fK", b / 1024.0);
+		if(b < 1024L * 1024 * 1024)
+			return String.format("%.1fM", b / 1024.0 / 1024);
+		return String.format("%.2fG", b / 1024.0 / 1024 / 1024);
+	}
+}
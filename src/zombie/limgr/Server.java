@@ -1,14 +1,24 @@
 package zombie.limgr;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.ini4j.Ini;
 
@@ -18,22 +28,60 @@ public class Server {
 		ONLINE,
 		OFFLINE,
 		STARTING,
-		ERROR
+		ERROR,
+		QUEUED, //Waiting for memory, see MemoryAdmission
+		HIBERNATING //Stopped while idle, LiMGR listens on the port, see Hibernation
 	}
 	
-	private Thread consoleThread; 
-    private Process process; //java-process of the server
-	private String console;
-	private BufferedWriter consoleWriter;
+	public enum StartResult {
+		STARTED,
+		QUEUED,
+		NO_MEMORY,
+		RUNNING,
+		FAILED
+	}
+	
+	public enum BackupResult {
+		DONE,
+		QUEUED, //Deferred by the PressureMonitor, runs later, errors only go to the log
+		FAILED
+	}
+	
+    private volatile Process process; //java-process of the server
+	private volatile State state = State.OFFLINE;
+	private volatile boolean stopRequested = false; //Exit was asked for, so it's no error
+	private volatile long timeToReady = -1;
+	private ConsoleBuffer console;
+	private ProcessIO.Channel consoleWriter; //stdin of the process
+	private final Set<String> pendingBackups = Collections.synchronizedSet(new HashSet<String>()); //Descriptions being written or queued
+	private volatile CompletableFuture<Integer> exit = CompletableFuture.completedFuture(0);
+	private volatile CompletableFuture<Boolean> ready = CompletableFuture.completedFuture(false);
 	
 	private File dir;
+	private volatile ServerConfig config; //Cached server.ini
+	private long configVersion = 0;
+	private final Object configLock = new Object();
+	
+	public static final int DEFAULT_CONSOLE_LINES = 1000;
+	public static final long DEFAULT_CONSOLE_BYTES = 1024 * 1024;
+	public static final String DEFAULT_READY_PATTERN = "Done \\(|Listening on /"; //Vanilla, Paper, Velocity / BungeeCord
+	
+	private static final ScheduledExecutorService readyTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Ready timeout");
+			t.setDaemon(true);
+			return t;
+		}
+	});
 
 	public Server(int id) {
 		this.id = id;
 		this.dir = new File(Main.deploymentDir.getPath() + File.separator + this.id);
+		this.console = new ConsoleBuffer(DEFAULT_CONSOLE_LINES, DEFAULT_CONSOLE_BYTES);
+		this.applyConsoleLimits();
 	}
 	
-	public int pid = 0;
+	public volatile int pid = 0; //0 if not running
 	private int id = -1;
 	
 	/**
@@ -57,7 +105,7 @@ public class Server {
 	 * @return port
 	 */
 	public String getPort() {
-		String s = this.getIni().get("Server", "Port");
+		String s = this.getConfig().getPort();
 		if(s!=null)
 			return s;
 		else {
@@ -71,7 +119,7 @@ public class Server {
 	 * @return Description of the server, "ERROR" in the event of a read error.
 	 */
 	public String getDesc() {
-		String s = this.getIni().get("Server", "Desc");
+		String s = this.getConfig().getDesc();
 		if(s!=null)
 			return s;
 		else {
@@ -85,16 +133,110 @@ public class Server {
 	 * @return Number of allocated memory in MB. ("512" in case of error)
 	 */
 	public int getMemory() {
-		String s = this.getIni().get("Server", "Memory").replace("M", "");
-		try {
-			return Integer.parseInt(s);
-		}catch (NumberFormatException e) {
-			System.err.println("[Server # "+ id +"] [!] Invalid memory specification in server.ini ("+ s +"). Use fallback: 512M");
-			return 512;
+		return this.getConfig().getMemory();
+	}
+	
+	/**
+	 * @return The server.ini file of this server
+	 */
+	public File getIniFile() {
+		return new File(this.dir.getPath() + File.separator + "server.ini");
+	}
+	
+	/**
+	 * Cached content of the server.ini. Reloaded after the file has changed.
+	 * @return
+	 */
+	public ServerConfig getConfig() {
+		ServerConfig c = this.config;
+		if(c != null && Main.configWatcher == null && !this.hasPendingConfig() && c.getLastModified() != this.getIniFile().lastModified())
+			c = null; //Not watched, check the modification time instead.
+		if(c == null) {
+			synchronized (this.configLock) {
+				c = this.config;
+				if(c == null) {
+					c = ServerConfig.load(this.id, this.getIniFile(), ++this.configVersion);
+					this.config = c;
+				}
+			}
 		}
-		
+		return c;
+	}
+	
+	/**
+	 * Changes settings of the [Server] section. The changes are visible immediately
+	 * and written to the server.ini in the background.
+	 * @param changes
+	 * @return The new config
+	 */
+	public ServerConfig updateConfig(Map<String, String> changes) {
+		ServerConfig c;
+		ServerConfig old;
+		synchronized (this.configLock) {
+			old = this.getConfig();
+			c = old.with(changes);
+			this.configVersion = c.getVersion();
+			this.config = c;
+		}
+		if(changes.containsKey("Port") && Main.allocator != null)
+			Main.allocator.portChanged(old.getPort(), c.getPort());
+		if(Main.configFlusher != null) {
+			Main.configFlusher.schedule(this);
+		}else try {
+			c = c.persisted(ConfigFlusher.write(c, this.getIniFile()));
+			this.config = c;
+		} catch (IOException e) {
+			System.err.println("[Server # "+ id +"] [!] Error writing the server.ini.");
+			e.printStackTrace();
+		}
+		return c;
 	}
 	
+	/**
+	 * Changes a single setting, see {@link #updateConfig(Map)}
+	 * @param key
+	 * @param value
+	 * @return The new config
+	 */
+	public ServerConfig setConfig(String key, String value) {
+		return this.updateConfig(Collections.singletonMap(key, value));
+	}
+	
+	/**
+	 * Called by the {@link ConfigFlusher} after a config has been written.
+	 * @param c The written config
+	 * @param lastModified Modification time of the written file
+	 */
+	void configPersisted(ServerConfig c, long lastModified) {
+		synchronized (this.configLock) {
+			if(this.config == c)
+				this.config = c.persisted(lastModified);
+		}
+	}
+	
+	private boolean hasPendingConfig() {
+		return Main.configFlusher != null && Main.configFlusher.isPending(this);
+	}
+	
+	/**
+	 * Drops the cached server.ini, it will be read again on next access.
+	 * Ignored while own changes are not yet written or if the file is the one written by us.
+	 */
+	public void invalidateConfig() {
+		if(this.hasPendingConfig())
+			return;
+		synchronized (this.configLock) {
+			ServerConfig c = this.config;
+			if(c != null && c.getLastModified() == this.getIniFile().lastModified())
+				return;
+			this.config = null;
+		}
+	}
+	
+	/**
+	 * Loads the server.ini for modification. For reading use {@link #getConfig()}.
+	 * @return
+	 */
 	public Ini getIni() {
 		File f = new File(this.dir.getPath() + File.separator + "server.ini");
 		try {
@@ -106,50 +248,212 @@ public class Server {
 		}
 	}
 	
+	/**
+	 * STARTING until the console shows the Ready-Pattern (or Ready-Timeout has passed), ERROR if
+	 * the process has exited unexpectedly with a non-zero exit code.
+	 * @return
+	 */
 	public Server.State getState() {
-		if (process == null || !process.isAlive()) {
-			return Server.State.OFFLINE;
-		} else {
-			return Server.State.ONLINE;
+		return this.state;
+	}
+	
+	/**
+	 * Used by the {@link Hibernation} and {@link MemoryAdmission} while the server isn't running.
+	 * @param state
+	 */
+	void setState(Server.State state) {
+		this.state = state;
+	}
+	
+	/**
+	 * @return Milliseconds from start until the server was ready (last start), -1 if not ready (yet)
+	 */
+	public long getTimeToReady() {
+		return this.timeToReady;
+	}
+	
+	/**
+	 * Waits until the server is ready. (ONLINE)
+	 * @param timeout in ms
+	 * @return false if it exited before or the timeout expired
+	 * @throws InterruptedException
+	 */
+	public boolean awaitReady(long timeout) throws InterruptedException {
+		try {
+			return this.ready.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException | TimeoutException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Console line that shows that the server is ready. Ready-Pattern in the server.ini,
+	 * [Process] ready-pattern in the config.ini
+	 * @return
+	 */
+	private Pattern getReadyPattern() {
+		String s = this.getConfig().get("Ready-Pattern", Main.getSetting("Process", "ready-pattern", DEFAULT_READY_PATTERN));
+		try {
+			return Pattern.compile(s);
+		}catch (PatternSyntaxException e) {
+			System.err.println("[Server # "+ id +"] [!] Invalid Ready-Pattern ("+ s +"). Use fallback: "+DEFAULT_READY_PATTERN);
+			return Pattern.compile(DEFAULT_READY_PATTERN);
 		}
 	}
 	
+	/**
+	 * Seconds after which a server that hasn't shown the Ready-Pattern is considered ready anyway.
+	 * Ready-Timeout in the server.ini, [Process] ready-timeout in the config.ini, 0 = wait forever
+	 * @return
+	 */
+	private long getReadyTimeout() {
+		long def = 300;
+		try {
+			def = Long.parseLong(Main.getSetting("Process", "ready-timeout", "300"));
+		}catch (NumberFormatException e) {
+			System.err.println("[!] Invalid [Process] ready-timeout in config.ini. Use fallback: 300");
+		}
+		return this.getConfig().getLong("Ready-Timeout", def);
+	}
+	
+	/**
+	 * @return Console history as text, NULL if nothing has been written yet.
+	 */
 	public String getConsole() {
+		String[] lines = this.console.snapshot();
+		if(lines.length == 0)
+			return null;
+		return ConsoleBuffer.join(lines);
+	}
+	
+	/**
+	 * @return The bounded console history of this server.
+	 */
+	public ConsoleBuffer getConsoleBuffer() {
 		return this.console;
 	}
 	
+	/**
+	 * Reads the console budget (Console-Lines, Console-Bytes) from the server.ini
+	 */
+	private void applyConsoleLimits() {
+		ServerConfig c = this.getConfig();
+		this.console.resize(c.getInt("Console-Lines", DEFAULT_CONSOLE_LINES), c.getLong("Console-Bytes", DEFAULT_CONSOLE_BYTES));
+	}
+	
+	/**
+	 * Cmdline of the server.ini: Name of a JVM profile of the [Profiles] section in the config.ini,
+	 * "java-default" or a complete command line.
+	 * @return
+	 */
 	public String[] getCmdline() {
-		String s = "java-default";
-		try {
-			s = this.getIni().get("Server", "Cmdline");
-			if(!s.equalsIgnoreCase("java-default"))
-				return s.trim().split("\\s+");
-		}catch (Exception e) {}
+		String s = this.getConfig().get("Cmdline", "java-default");
+		String profile = Main.getSetting("Profiles", s, null);
+		if(profile != null) {
+			System.out.println("[Server #"+id+"] JVM profile: "+s);
+			return expandProfile(profile, this.getMemory());
+		}
+		if(!s.equalsIgnoreCase("java-default"))
+			return s.split("\\s+");
 		System.out.println("[Server #"+id+"] Cmdline: "+s);
 		return new String[] {"java", "-Xmx"+this.getMemory()+"M", "-jar", "server.jar"};
 	}
 	
+	/**
+	 * Fills in a JVM profile.
+	 * @param profile Command line with {MEM} for the memory in MB
+	 * @param memory
+	 * @return
+	 */
+	public static String[] expandProfile(String profile, int memory) {
+		String[] cmd = profile.trim().split("\\s+");
+		for(int i = 0; i < cmd.length; i++)
+			cmd[i] = cmd[i].replace("{MEM}", Integer.toString(memory));
+		return cmd;
+	}
+	
 	/**
 	 * Starts the server.
-	 * @return true if successful
+	 * @return true if started or queued, see {@link #requestStart()}
 	 */
 	public boolean start() {
+		StartResult r = this.requestStart();
+		return r == StartResult.STARTED || r == StartResult.QUEUED;
+	}
+	
+	/**
+	 * Starts the server, if the {@link MemoryAdmission} has enough memory left for it.
+	 * @return
+	 */
+	public StartResult requestStart() {
+		if((this.process != null && process.isAlive()) || this.state == State.QUEUED)
+			return StartResult.RUNNING;
+		if(Main.admission != null) {
+			switch(Main.admission.admit(this)) {
+			case QUEUED:
+				this.state = State.QUEUED;
+				return StartResult.QUEUED;
+			case REFUSED:
+				return StartResult.NO_MEMORY;
+			default:
+				break;
+			}
+		}
+		if(this.launch())
+			return StartResult.STARTED;
+		if(Main.admission != null)
+			Main.admission.release(this);
+		return StartResult.FAILED;
+	}
+	
+	/**
+	 * Starts the process, without asking the {@link MemoryAdmission}.
+	 * @return true if running
+	 */
+	synchronized boolean launch() {
 		if(this.process != null && process.isAlive())
-			return false;
+			return true;
+		if(Main.hibernation != null)
+			Main.hibernation.wake(this); //Free the port
+		this.applyConsoleLimits();
+		AppCDS.Launch cds = null;
         try {
-        	ProcessBuilder builder = new ProcessBuilder(this.getCmdline());
+        	ArrayList<String> cmdline = new ArrayList<String>(Arrays.asList(this.getCmdline()));
+        	cds = Main.appcds == null ? null : Main.appcds.prepare(this, cmdline);
+        	String[] cmd = cmdline.toArray(new String[cmdline.size()]);
+        	if(Main.governor != null)
+        		cmd = Main.governor.wrap(cmd, this);
+        	ProcessBuilder builder = new ProcessBuilder(cmd);
     		builder.redirectErrorStream(true);
     		builder.directory(new File(this.dir.getPath()+File.separator+"files"));
+    		ProcessHandler handler = new ProcessHandler(this.getReadyPattern(), cds);
+    		this.stopRequested = false;
+    		this.timeToReady = -1;
+    		this.exit = handler.exit;
+    		this.ready = handler.ready;
+    		this.state = State.STARTING;
 			this.process = builder.start();
-			this.consoleThread = new Thread(processReader);
-	        this.consoleThread.start();
-	        this.consoleWriter = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
-	        Ini i = this.getIni();
-	        i.put("Server", "Recently-Started", Util.curDate());
-	        i.store();
+			handler.p = this.process;
+			this.pid = ResourceSampler.getPid(this.process);
+			long readyTimeout = this.getReadyTimeout();
+			if(readyTimeout > 0)
+				readyTimer.schedule(new Runnable() {
+					public void run() {
+						handler.readyTimeout();
+					}
+				}, readyTimeout, TimeUnit.SECONDS);
+			System.out.println("[SERVER # "+ id +"] Starting. . .");
+			consolePrintln("\n\n"+Main.lang.hashie.get("c_server_starting"));
+			this.consoleWriter = Main.processIO.attach(this.process, "Server #"+id, handler);
+	        this.setConfig("Recently-Started", Util.curDate());
 	        return true;
 		} catch (Throwable e) {
 			e.printStackTrace();
+			this.state = State.ERROR;
+			if(cds != null)
+				Main.appcds.exited(this, cds, -1);
+			this.exit.complete(-1);
+			this.ready.complete(false);
 			return false;
 		}
         
@@ -160,66 +464,161 @@ public class Server {
 	 * @return true if successful
 	 */
 	public boolean stop() {
+		if(Main.watchdog != null)
+			Main.watchdog.cancel(this);
+		if(this.cancelQueued())
+			return true;
+		if(Main.hibernation != null && Main.hibernation.cancel(this))
+			return true;
 		return this.sendCommand("stop");
 	}
 	
+	/**
+	 * Removes a queued start.
+	 * @return false if not queued
+	 */
+	private boolean cancelQueued() {
+		if(Main.admission == null || !Main.admission.cancel(this))
+			return false;
+		this.state = State.OFFLINE;
+		System.out.println("[Server #"+id+"] Queued start cancelled.");
+		return true;
+	}
+	
+	/**
+	 * Asks the OS to terminate the server (SIGTERM), the server can still save.
+	 * @return false if it isn't running
+	 */
+	public boolean terminate() {
+		if(process != null && process.isAlive()) {
+			this.stopRequested = true;
+			System.out.println("[Server #"+id+"] is terminated. . .");
+			if(this.consoleWriter != null)
+				this.consoleWriter.destroying();
+			this.process.destroy();
+			return true;
+		}else return false;
+	}
+	
 	/**
 	 * Kills the Server
 	 * @return
 	 */
 	public boolean kill() {
+		if(Main.watchdog != null)
+			Main.watchdog.cancel(this);
+		if(this.cancelQueued())
+			return true;
+		if(Main.hibernation != null && Main.hibernation.cancel(this))
+			return true;
 		if(process != null && process.isAlive()) {
+			this.stopRequested = true;
 			System.out.println("[Server #"+id+"] is forcibly terminated. . .\r\n");
+			if(this.consoleWriter != null)
+				this.consoleWriter.destroying();
 			this.process.destroyForcibly();
 			return true;
 		}else return false;
 	}
 	
+	/**
+	 * @return Completed with the exit code once the current process has exited and its output is read.
+	 * Already completed if the server isn't running.
+	 */
+	public CompletableFuture<Integer> onExit() {
+		return this.exit;
+	}
+	
 	/**
 	 * Sends Commands  
 	 * @param cmd
 	 * @return
 	 */
 	public boolean sendCommand(String cmd) {
-		if(consoleWriter != null) try {
-			this.consoleWriter.write(cmd+"\n");
-			this.consoleWriter.flush();
-			return true;
-		} catch (IOException e) {
-			e.printStackTrace();
-			return false;
-		} else return false;
-	}
-	
-	private Runnable processReader = new Runnable() {
-        public void run() {
-        	try {
-        		System.out.println("[SERVER # "+ id +"] Starting. . .");
-        		consolePrintln("\n\n"+Main.lang.hashie.get("c_server_starting"));
-                BufferedReader br = new BufferedReader(new InputStreamReader(process.getInputStream()));
-                String s;
-                try {
-                	while ((s = br.readLine()) != null) {
-                        System.out.println("[SERVER #"+id+"]: " + s);
-                        consolePrintln(s);
-                    }
-                }catch(IOException e) {
-                	System.err.println("[!] IOE");
-                }
-                
-                process.waitFor();
-                System.out.println("[SERVER # "+ id +"] Finished. ("+ process.exitValue () +")");
-                consolePrintln("\n\n"+Main.lang.hashie.get("c_server_exited").replace("%s", process.exitValue()+""));
-                consoleWriter.close();
-                consoleWriter = null;
-                process.destroy();
-            } catch (Exception e) {
-            	e.printStackTrace();
-            }
-        }
-    };
+		if(cmd.trim().equalsIgnoreCase("stop"))
+			this.stopRequested = true; //Also when typed into the console, so the watchdog doesn't restart it
+		ProcessIO.Channel c = this.consoleWriter;
+		if(c != null)
+			return c.send(cmd);
+		else return false;
+	}
+	
+	/**
+	 * Receives the output of the server process from the I/O engine.
+	 */
+	private class ProcessHandler implements ProcessIO.Handler {
+		
+		private Process p;
+		private final Pattern readyPattern;
+		private final AppCDS.Launch cds;
+		private final long started = System.currentTimeMillis();
+		final CompletableFuture<Integer> exit = new CompletableFuture<Integer>();
+		final CompletableFuture<Boolean> ready = new CompletableFuture<Boolean>();
+		
+		ProcessHandler(Pattern readyPattern, AppCDS.Launch cds) {
+			this.readyPattern = readyPattern;
+			this.cds = cds;
+		}
+		
+		@Override
+		public void onLine(String s) {
+			Main.mirror.println("[SERVER #"+id+"]: " + s);
+			consolePrintln(s);
+			if(!this.ready.isDone() && this.readyPattern.matcher(s).find()) {
+				synchronized (this) {
+					if(this.ready.isDone())
+						return; //Ready-Timeout meanwhile
+					long t = System.currentTimeMillis() - this.started;
+					if(process == this.p) {
+						timeToReady = t;
+						state = State.ONLINE;
+					}
+					System.out.println("[SERVER # "+ id +"] Ready after "+String.format("%.1fs", t / 1000.0)+".");
+					if(this.cds != null)
+						Main.appcds.ready(Server.this, this.cds, t);
+					this.ready.complete(true);
+				}
+			}
+		}
+		
+		/**
+		 * The Ready-Pattern hasn't shown up within Ready-Timeout, the server counts as ready.
+		 * No startup time is recorded.
+		 */
+		synchronized void readyTimeout() {
+			if(this.ready.isDone() || this.exit.isDone())
+				return;
+			if(process == this.p && state == State.STARTING)
+				state = State.ONLINE;
+			System.err.println("[SERVER # "+ id +"] [!] Ready-Pattern not seen after "+String.format("%.0fs", (System.currentTimeMillis() - this.started) / 1000.0)
+					+", assuming the server is ready. Set Ready-Pattern in the server.ini.");
+			this.ready.complete(true);
+		}
+		
+		@Override
+		public void onExit(int exitCode) {
+			System.out.println("[SERVER # "+ id +"] Finished. ("+ exitCode +")");
+			consolePrintln("\n\n"+Main.lang.hashie.get("c_server_exited").replace("%s", exitCode+""));
+			if(process == this.p) {
+				consoleWriter = null;
+				pid = 0;
+				state = exitCode != 0 && !stopRequested ? State.ERROR : State.OFFLINE;
+				if(Main.admission != null)
+					Main.admission.release(Server.this);
+			}
+			this.p.destroy();
+			if(this.cds != null)
+				Main.appcds.exited(Server.this, this.cds, exitCode);
+			this.ready.complete(false);
+			this.exit.complete(exitCode);
+			if(process == this.p && !stopRequested && Main.watchdog != null)
+				Main.watchdog.crashed(Server.this, exitCode, this.exit);
+		}
+	}
+	
 	private void consolePrintln(String x) {
-		this.console += x + "\n";
+		for(String line : x.split("\n", -1))
+			this.console.append(line);
 	}
     
 	
@@ -230,41 +629,35 @@ public class Server {
 	/**
 	 * Creates a server in the deployment directory and registers it.
 	 * @param desc Server description.
-	 * @param port Port on which the server should be placed.
+	 * @param port Port on which the server should be placed, 0 to pick a free one from the [Limits] port-range.
 	 * @param template Name of the template (* .jar or * .zip) based on which the server is to be created.
 	 * @param memory Number of RAM to be assigned to the server (in MB)
 	 * @param Should the server be started automatically when the system is started?
 	 * @return ID of the created server, in the event of an error a negative INT which represents the error code.
 	 */
 	public static int Create(String desc, int port, String template, int memory, boolean autostart) {
-		// Determine the new ID
-		int id = 0;
-		for(String f : Main.deploymentDir.list()) {
-			try {
-				int i = Integer.parseInt(f);
-				if(i > id)
-					id = i;
-			}catch (NumberFormatException e) {
-				continue;
-			}
-		}
-		id++;
-		File serverdir;
-		while(true) {
-			serverdir = new File(Main.deploymentDir.getPath() + File.separator + id);
-			if(serverdir.exists()) {
-				id++;
-				continue;
-			}else break;
-		}
-		
 		//Template check.
 		if(!getTemplates().contains(template)) 
 			return -1;
 		
+		// Reserve ID and port
+		Allocator.Allocation a = Main.allocator.allocate(port);
+		if(a == null) {
+			System.err.println("[!] Error creating the server: Port "+(port > 0 ? port+" is already in use." : "range is exhausted."));
+			return -7;
+		}
+		int r = deploy(a.id, desc, a.port, template, memory, autostart);
+		if(r < 0)
+			Main.allocator.free(a);
+		return r;
+	}
+	
+	private static int deploy(int id, String desc, int port, String template, int memory, boolean autostart) {
+		File serverdir = new File(Main.deploymentDir.getPath() + File.separator + id);
 		
 		//Create folder.
-		serverdir.mkdir();
+		if(!serverdir.mkdir())
+			return -2;
 		File serverdir_files = new File(serverdir.getPath() + File.separator + "files");
 		serverdir_files.mkdir();
 		File serverdir_backups = new File(serverdir.getPath() + File.separator + "backups");
@@ -282,7 +675,25 @@ public class Server {
 					"Memory="+memory+"M\n" +
 					"Port="+port+"\n" +
 					"Autostart="+Boolean.toString(autostart)+"\n" +
+					"Autostart-Priority=0\n" +
+					"Restart-On-Crash=true\n" +
+					"Restart-Delay=5\n" +
+					"Restart-Max-Delay=300\n" +
+					"Restart-Limit=5\n" +
+					"Restart-Window=600\n" +
+					"CPU-Set=\n" +
+					"Nice=0\n" +
+					"IO-Class=\n" +
+					"IO-Priority=4\n" +
+					"Cgroup=false\n" +
+					"CPU-Max=0\n" +
+					"Memory-Max=0\n" +
+					"Hibernate=false\n" +
+					"Hibernate-After=15\n" +
 					"Cmdline=java-default\n" +
+					"Template="+template+"\n" +
+					"Console-Lines="+DEFAULT_CONSOLE_LINES+"\n" +
+					"Console-Bytes="+DEFAULT_CONSOLE_BYTES+"\n" +
 					"Time-Created="+Util.curDate()+"\n" +
 					"\n";
 			f.write(defaultConfig.getBytes("UTF-8"));
@@ -334,7 +745,7 @@ public class Server {
 			}
 		}
 		
-		System.out.println("[Server # "+ id +"] Created successfully.\r\n");
+		System.out.println("[Server # "+ id +"] Created successfully. (Port "+ port +")\r\n");
 		Main.servers.add(new Server(id));
 		return id;
 	}
@@ -347,10 +758,9 @@ public class Server {
 	public static boolean Delete(int id) {
 		try {
 			Server srvr = Server.getByID(id);
-			if(srvr != null) {
+			if(srvr != null && Main.servers.remove(srvr)) {
 				srvr.kill();
 				Util.deleteFileOrFolder(new File(Main.deploymentDir.getPath() + File.separator + srvr.getID()).toPath());
-				Main.servers.remove(srvr);
 				System.out.println("[Server #"+id+"] Deleted.");
 				return true;
 			}
@@ -372,12 +782,7 @@ public class Server {
 	 * @return The server found. NULL if not found
 	 */
 	public static Server getByID(int id) {
-		for(Server srv : Main.servers) {
-			if(srv.id == id)
-				return srv;
-			else continue;
-		}
-		return null;
+		return Main.servers.get(id);
 	}
 	
 	public static ArrayList<String> getTemplates() {
@@ -390,7 +795,8 @@ public class Server {
 			return s;
 		}
 		for(String l : f.list())
-			s.add(l);
+			if(!l.startsWith(".")) //.cds
+				s.add(l);
 		return s;
 	}
 
@@ -404,23 +810,82 @@ public class Server {
 			return s;
 		}
 		for(String l : f.list())
-			s.add(l);
+			if(!l.startsWith(".") && !l.endsWith(".tmp")) //.chunks, unfinished manifests
+				s.add(l);
 		return s;
 	}
 	
-	public boolean createBackup(String desc) {
-		File zip = new File(this.dir.getPath() + File.separator + "backups" + File.separator + desc + ".zip");
-		if(zip.exists()) {
+	/**
+	 * @param desc
+	 * @return The ZIP, manifest or snapshot directory of a backup, NULL if it doesn't exist
+	 */
+	private File getBackupFile(String desc) {
+		for(String ext : new String[] {".zip", ".manifest"}) {
+			File f = new File(this.dir.getPath() + File.separator + "backups" + File.separator + desc + ext);
+			if(f.isFile())
+				return f;
+		}
+		File snap = new File(this.dir.getPath() + File.separator + "backups" + File.separator + desc + Snapshot.EXT);
+		return snap.isDirectory() ? snap : null;
+	}
+	
+	/**
+	 * @param desc
+	 * @return QUEUED if the system is under pressure and the backup is written later
+	 */
+	public BackupResult createBackup(String desc) {
+		if(this.getBackupFile(desc) != null || !this.pendingBackups.add(desc)) {
 			System.err.println("[!] [Server # "+ this.id + "] Failure to create the backup: A backup with the description " + desc + " already exists.");
-			return false;
+			return BackupResult.FAILED;
 		}
 		
+		boolean queued = false;
+		try {
+			if(Snapshot.isEnabled()) { //Not deferred, the copy is quick and saving is paused meanwhile
+				if(!Snapshot.create(this, new File(this.dir, "backups" + File.separator + desc + Snapshot.EXT)))
+					return BackupResult.FAILED;
+				System.out.println("[Server # "+ this.id +"] backup created.");
+				return BackupResult.DONE;
+			}
+			final String d = desc;
+			queued = Main.pressure != null && Main.pressure.defer("Backup of server #"+this.id, new Runnable() {
+				public void run() {
+					try {
+						writeBackup(d);
+					}finally {
+						pendingBackups.remove(d);
+					}
+				}
+			});
+			if(queued)
+				return BackupResult.QUEUED; //Written once the pressure has dropped, the description stays reserved
+			return this.writeBackup(desc) ? BackupResult.DONE : BackupResult.FAILED;
+		}finally {
+			if(!queued)
+				this.pendingBackups.remove(desc);
+		}
+	}
+	
+	/**
+	 * Writes a ZIP or manifest backup, see {@link #createBackup(String)}.
+	 */
+	private boolean writeBackup(String desc) {
+		if(ChunkStore.isEnabled()) {
+			File backups = new File(this.dir, "backups");
+			File manifest = new File(backups, desc + ".manifest");
+			if(!ChunkStore.forServer(this).backup(new File(this.dir, "files"), manifest, ChunkStore.getLatestManifest(backups)))
+				return false;
+			System.out.println("[Server # "+ this.id +"] backup created.");
+			return true;
+		}
+		File zip = new File(this.dir.getPath() + File.separator + "backups" + File.separator + desc + ".zip");
 		try {
 			if(!zip.createNewFile()) {
 				System.err.println("[!] [Server # "+ this.id +"] Error creating the backup " + desc + ". Zip (Cannot create file)");
 				return false;
 			}
-			if(Util.mkzip(new File(this.dir.getPath() + File.separator + "files"), zip)) {
+			File files = new File(this.dir.getPath() + File.separator + "files");
+			if(ParallelZip.isEnabled() ? ParallelZip.fromConfig().zip(files, zip) : Util.mkzip(files, zip)) {
 				System.out.println("[Server # "+ this.id +"] backup created.");
 				return true;
 			}else {
@@ -436,11 +901,21 @@ public class Server {
 	}
 	
 	public boolean deleteBackup(String desc) {
-		File zip = new File(this.dir.getPath() + File.separator + "backups" + File.separator + desc + ".zip");
-		if(zip.exists()) {
-			if(zip.delete()) {
+		File zip = this.getBackupFile(desc);
+		if(zip != null) {
+			if(zip.isDirectory()) {
+				try {
+					Util.deleteFileOrFolder(zip.toPath());
+				} catch (IOException e) {
+					System.err.println("[!] [Server # "+ this.id +"] An error occurred while deleting the backup " + desc + ".\r\n");
+					return false;
+				}
+				System.out.println("[Server # "+ this.id +"] Backup " + desc + " deleted.");
+				return true;
+			}else if(zip.delete()) {
 				System.out.println("[Server # "+ this.id +"] Backup " + desc + " deleted.");
-				
+				if(zip.getName().endsWith(".manifest"))
+					ChunkStore.forServer(this).gc();
 				return true;
 			}else {
 				System.err.println("[!] [Server # "+ this.id +"] An error occurred while deleting the backup " + desc + ".\r\n");
@@ -452,40 +927,81 @@ public class Server {
 		}
 	}
 
-	public boolean applyBackup(String desc) {
-		if(this.getBackups().contains(desc+ ".zip")) {
+	/**
+	 * @param desc
+	 * @return QUEUED if the system is under pressure and the backup is installed later
+	 */
+	public BackupResult applyBackup(String desc) {
+		File backup = this.getBackupFile(desc);
+		if(backup != null) {
 			System.out.println("[Server # "+ this.id +"] Backup " + desc + " is being uploaded. . .");
 			
-			File backup = new File(this.dir.getPath() + File.separator + "backups" + File.separator + desc + ".zip");
-			if(!backup.exists() || backup.isDirectory()) {
+			boolean snapshot = backup.getName().endsWith(Snapshot.EXT);
+			if(!backup.exists() || (backup.isDirectory() && !snapshot)) {
 				System.err.println("[!] [Server # "+ this.id +"] An error occurred while installing the backup " + desc + ". (0)");
-				return false;
+				return BackupResult.FAILED;
 			}
+			final String d = desc;
+			final File b = backup;
+			if(Main.pressure != null && Main.pressure.defer("Restore of server #"+this.id, new Runnable() {
+				public void run() {
+					installBackup(d, b);
+				}
+			}))
+				return BackupResult.QUEUED; //Installed once the pressure has dropped
+			return this.installBackup(desc, backup) ? BackupResult.DONE : BackupResult.FAILED;
+		}else {
+			System.err.println("[!] Error: Couldn't upload unknown backup " + desc + ".\r\n");
+			return BackupResult.FAILED;
+		}
+	}
+	
+	/**
+	 * Installs an existing backup, see {@link #applyBackup(String)}.
+	 */
+	private boolean installBackup(String desc, File backup) {
+		boolean snapshot = backup.getName().endsWith(Snapshot.EXT);
+		File files_dir = new File(this.dir.getPath() + File.separator + "files");
+		if((StagedRestore.isEnabled() || snapshot) && files_dir.isDirectory())
+			return StagedRestore.apply(this, backup);
+		if(DiffRestore.isEnabled() && files_dir.isDirectory() && !snapshot) {
 			try {
-				Util.deleteFileOrFolder(new File(this.dir.getPath() + File.separator + "files").toPath());
+				DiffRestore.Result r = backup.getName().endsWith(".manifest")
+						? DiffRestore.fromManifest(ChunkStore.forServer(this), backup, files_dir, DiffRestore.isChecksumForced())
+						: DiffRestore.fromZip(backup, files_dir, DiffRestore.isChecksumForced());
+				System.out.println("[Server # "+ this.id +"] Backup loaded successfully: "+r+"\r\n");
+				return true;
 			} catch (IOException e) {
-				System.err.println("[!] [Server # "+ this.id +"] An error occurred while installing the backup " + desc + ". (1)\r\n");
+				System.err.println("[!] [Server # "+ this.id +"] An error occurred while installing the backup " + desc + ". (3)\r\n");
 				e.printStackTrace();
 				return false;
 			}
-			File files_dir = new File(this.dir.getPath() + File.separator + "files");
-			if(!files_dir.exists() && !files_dir.mkdir()) {
-				System.err.println("[!] [Server # "+ this.id +"] An error occurred while installing the backup " + desc + ". (2)");
-				return false;
-			}
-			if(!Util.unzip(backup, files_dir)) {
+		}
+		try {
+			Util.deleteFileOrFolder(files_dir.toPath());
+		} catch (IOException e) {
+			System.err.println("[!] [Server # "+ this.id +"] An error occurred while installing the backup " + desc + ". (1)\r\n");
+			e.printStackTrace();
+			return false;
+		}
+		if(!files_dir.exists() && !files_dir.mkdir()) {
+			System.err.println("[!] [Server # "+ this.id +"] An error occurred while installing the backup " + desc + ". (2)");
+			return false;
+		}
+		if(snapshot) {
+			try {
+				Snapshot.restore(backup, files_dir);
+			} catch (IOException e) {
 				System.err.println("[!] [Server # "+ this.id +"] An error occurred while installing the backup " + desc + ". (3)\r\n");
+				e.printStackTrace();
 				return false;
 			}
-			System.out.println("[Server # "+ this.id +"] Backup loaded successfully.\r\n");
-			return true;
-		}else {
-			System.err.println("[!] Error: Couldn't upload unknown backup " + desc + ".\r\n");
+		}else if(backup.getName().endsWith(".manifest") ? !ChunkStore.forServer(this).restore(backup, files_dir) : !Util.unzip(backup, files_dir)) {
+			System.err.println("[!] [Server # "+ this.id +"] An error occurred while installing the backup " + desc + ". (3)\r\n");
 			return false;
 		}
-		
-		
-		
+		System.out.println("[Server # "+ this.id +"] Backup loaded successfully.\r\n");
+		return true;
 	}
 
 	
@@ -0,0 +1,220 @@
+package zombie.limgr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.ini4j.Ini;
+import org.ini4j.Profile.Section;
+
+/**
+ * Parsed, immutable content of a server.ini.
+ * The typed values are parsed once when loading, so reading them costs no disk I/O.
+ * Changes create a new version via {@link #with(Map)}, which is written to disk later
+ * by the {@link ConfigFlusher}.
+ */
+public class ServerConfig {
+
+	public static final String SECTION = "Server";
+
+	private final int id;
+	private final Map<String, Map<String, String>> sections;
+	private final Map<String, String> server;
+	private final long lastModified;
+	private final long version;
+
+	private final String desc;
+	private final String port;
+	private final int memory;
+
+	/**
+	 * @param id Server ID (for error messages)
+	 * @param sections All sections of the file, in file order
+	 * @param lastModified Modification time of the file this was read from / written to
+	 * @param version Incremented with every change
+	 */
+	public ServerConfig(int id, Map<String, Map<String, String>> sections, long lastModified, long version) {
+		this.id = id;
+		this.sections = sections;
+		this.lastModified = lastModified;
+		this.version = version;
+		Map<String, String> s = sections.get(SECTION);
+		this.server = s == null ? Collections.<String, String>emptyMap() : s;
+
+		this.desc = this.server.get("Desc");
+		this.port = this.server.get("Port");
+		int mem = 512;
+		String m = this.server.get("Memory");
+		try {
+			mem = Integer.parseInt(m.replace("M", "").trim());
+		}catch (NullPointerException | NumberFormatException e) {
+			System.err.println("[Server # "+ id +"] [!] Invalid memory specification in server.ini ("+ m +"). Use fallback: 512M");
+		}
+		this.memory = mem;
+	}
+
+	/**
+	 * Reads a server.ini
+	 * @param id Server ID
+	 * @param f server.ini
+	 * @param version Version to assign
+	 * @return The parsed config, an empty one if the file couldn't be read.
+	 */
+	public static ServerConfig load(int id, File f, long version) {
+		Map<String, Map<String, String>> sections = new LinkedHashMap<String, Map<String, String>>();
+		long modified = f.lastModified();
+		try {
+			Ini ini = new Ini(f);
+			for(Section sec : ini.values()) {
+				Map<String, String> m = new LinkedHashMap<String, String>();
+				for(String key : sec.keySet())
+					m.put(key, sec.get(key));
+				sections.put(sec.getName(), Collections.unmodifiableMap(m));
+			}
+		} catch (Throwable t) {
+			System.err.println("[Server # "+ id +"] [!] An error occurred while reading the server.ini. ("+ f.getPath () +")");
+			t.printStackTrace();
+		}
+		return new ServerConfig(id, Collections.unmodifiableMap(sections), modified, version);
+	}
+	
+	/**
+	 * Creates the next version of this config.
+	 * @param changes Keys and values to set in the [Server] section
+	 * @return
+	 */
+	public ServerConfig with(Map<String, String> changes) {
+		Map<String, Map<String, String>> sections = new LinkedHashMap<String, Map<String, String>>(this.sections);
+		Map<String, String> m = new LinkedHashMap<String, String>(this.server);
+		m.putAll(changes);
+		sections.put(SECTION, Collections.unmodifiableMap(m));
+		return new ServerConfig(this.id, Collections.unmodifiableMap(sections), this.lastModified, this.version + 1);
+	}
+	
+	/**
+	 * Same config, marked as written to a file with the given modification time.
+	 * @param lastModified
+	 * @return
+	 */
+	ServerConfig persisted(long lastModified) {
+		return new ServerConfig(this.id, this.sections, lastModified, this.version);
+	}
+	
+	/**
+	 * Writes this config as ini.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void store(OutputStream out) throws IOException {
+		Ini ini = new Ini();
+		for(Map.Entry<String, Map<String, String>> sec : this.sections.entrySet())
+			for(Map.Entry<String, String> e : sec.getValue().entrySet())
+				ini.put(sec.getKey(), e.getKey(), e.getValue());
+		ini.store(out);
+	}
+	
+	/**
+	 * @return Version of this config, incremented with every change and reload.
+	 */
+	public long getVersion() {
+		return this.version;
+	}
+
+	public int getID() {
+		return this.id;
+	}
+
+	/**
+	 * @return Modification time of the server.ini this config was read from.
+	 */
+	public long getLastModified() {
+		return this.lastModified;
+	}
+
+	/**
+	 * @return Keys of the [Server] section, in file order.
+	 */
+	public Set<String> keySet() {
+		return this.server.keySet();
+	}
+
+	/**
+	 * @return All sections of the file.
+	 */
+	public Map<String, Map<String, String>> getSections() {
+		return this.sections;
+	}
+
+	/**
+	 * @param key Key in the [Server] section
+	 * @return NULL if not set
+	 */
+	public String get(String key) {
+		return this.server.get(key);
+	}
+
+	public String get(String key, String def) {
+		String s = this.server.get(key);
+		return s == null || s.trim().isEmpty() ? def : s.trim();
+	}
+
+	public int getInt(String key, int def) {
+		String s = this.server.get(key);
+		if(s == null || s.trim().isEmpty())
+			return def;
+		try {
+			return Integer.parseInt(s.trim());
+		}catch (NumberFormatException e) {
+			System.err.println("[Server # "+ id +"] [!] Invalid "+key+" specification in server.ini ("+ s +"). Use fallback: "+def);
+			return def;
+		}
+	}
+
+	public long getLong(String key, long def) {
+		String s = this.server.get(key);
+		if(s == null || s.trim().isEmpty())
+			return def;
+		try {
+			return Long.parseLong(s.trim());
+		}catch (NumberFormatException e) {
+			System.err.println("[Server # "+ id +"] [!] Invalid "+key+" specification in server.ini ("+ s +"). Use fallback: "+def);
+			return def;
+		}
+	}
+
+	public boolean getBoolean(String key, boolean def) {
+		String s = this.server.get(key);
+		if(s == null || s.trim().isEmpty())
+			return def;
+		return s.trim().equalsIgnoreCase("true");
+	}
+
+	/**
+	 * @return Desc, NULL if not set
+	 */
+	public String getDesc() {
+		return this.desc;
+	}
+
+	/**
+	 * @return Port, NULL if not set
+	 */
+	public String getPort() {
+		return this.port;
+	}
+
+	/**
+	 * @return Memory in MB, 512 if invalid
+	 */
+	public int getMemory() {
+		return this.memory;
+	}
+
+	public boolean isAutostart() {
+		return this.getBoolean("Autostart", false);
+	}
+}
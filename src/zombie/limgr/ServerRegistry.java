@@ -0,0 +1,108 @@
+package zombie.limgr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Thread-safe directory of all registered servers, keyed by ID.
+ * Lookups are O(1), iterating works on an immutable snapshot (sorted by ID),
+ * so readers never block and never see a ConcurrentModificationException.
+ */
+public class ServerRegistry implements Iterable<Server> {
+
+	/**
+	 * Gets notified when servers are registered or removed.
+	 */
+	public interface Listener {
+		public void onAdded(Server srv);
+
+		public void onRemoved(Server srv);
+	}
+
+	private ConcurrentHashMap<Integer, Server> servers = new ConcurrentHashMap<Integer, Server>();
+	private volatile List<Server> snapshot = Collections.emptyList();
+	private CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	/**
+	 * Registers a server.
+	 * @param srv
+	 * @return false if a server with this ID is already registered
+	 */
+	public boolean add(Server srv) {
+		synchronized (this) {
+			if(this.servers.putIfAbsent(srv.getID(), srv) != null)
+				return false;
+			this.rebuild();
+		}
+		for(Listener l : this.listeners)
+			l.onAdded(srv);
+		return true;
+	}
+
+	/**
+	 * Removes a server.
+	 * @param srv
+	 * @return false if it wasn't registered
+	 */
+	public boolean remove(Server srv) {
+		synchronized (this) {
+			if(!this.servers.remove(srv.getID(), srv))
+				return false;
+			this.rebuild();
+		}
+		for(Listener l : this.listeners)
+			l.onRemoved(srv);
+		return true;
+	}
+
+	private void rebuild() {
+		ArrayList<Server> l = new ArrayList<Server>(this.servers.values());
+		Collections.sort(l, new Comparator<Server>() {
+			public int compare(Server a, Server b) {
+				return Integer.compare(a.getID(), b.getID());
+			}
+		});
+		this.snapshot = Collections.unmodifiableList(l);
+	}
+
+	/**
+	 * @param id
+	 * @return The server with the ID, NULL if not found
+	 */
+	public Server get(int id) {
+		return this.servers.get(id);
+	}
+
+	public boolean contains(int id) {
+		return this.servers.containsKey(id);
+	}
+
+	/**
+	 * @return Immutable list of all servers at this moment, sorted by ID
+	 */
+	public List<Server> snapshot() {
+		return this.snapshot;
+	}
+
+	public int size() {
+		return this.snapshot.size();
+	}
+
+	@Override
+	public Iterator<Server> iterator() {
+		return this.snapshot.iterator();
+	}
+
+	public void addListener(Listener l) {
+		this.listeners.add(l);
+	}
+
+	public void removeListener(Listener l) {
+		this.listeners.remove(l);
+	}
+}
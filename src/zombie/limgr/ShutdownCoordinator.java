@@ -0,0 +1,101 @@
+package zombie.limgr;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Stops all running servers at once when the manager shuts down.
+ * Every server gets "stop" at the same time and may save for [Shutdown] stop-timeout seconds.
+ * Servers still running after that are terminated (SIGTERM), after [Shutdown] term-timeout
+ * seconds the rest is killed.
+ */
+public class ShutdownCoordinator {
+
+	private long stopTimeout;
+	private long termTimeout;
+
+	public ShutdownCoordinator() {
+		try {
+			this.stopTimeout = Math.max(0, Long.parseLong(Main.getSetting("Shutdown", "stop-timeout", "60")));
+			this.termTimeout = Math.max(0, Long.parseLong(Main.getSetting("Shutdown", "term-timeout", "10")));
+		}catch (NumberFormatException e) {
+			System.err.println("[!] Invalid [Shutdown] timeouts in config.ini. Use fallback: stop-timeout=60, term-timeout=10");
+			this.stopTimeout = 60;
+			this.termTimeout = 10;
+		}
+	}
+
+	/**
+	 * Stops the servers and returns once all of them have exited.
+	 * @param servers
+	 */
+	public void stopAll(Iterable<Server> servers) {
+		final long begin = System.currentTimeMillis();
+		final Map<Server, CompletableFuture<Integer>> running = new LinkedHashMap<Server, CompletableFuture<Integer>>();
+		final ConcurrentHashMap<Server, Long> times = new ConcurrentHashMap<Server, Long>();
+		final ConcurrentHashMap<Server, String> how = new ConcurrentHashMap<Server, String>();
+		for(final Server srv : servers) {
+			final CompletableFuture<Integer> f = srv.onExit();
+			if(f.isDone())
+				continue;
+			running.put(srv, f);
+			how.put(srv, "stop");
+			f.thenRun(new Runnable() {
+				public void run() {
+					times.put(srv, System.currentTimeMillis() - begin);
+				}
+			});
+			if(!srv.stop())
+				srv.terminate(); //Console not attached, "stop" can't be sent
+		}
+		if(running.isEmpty())
+			return;
+		System.out.println("[Shutdown] Stopping "+running.size()+" servers. . .");
+
+		if(!await(running, this.stopTimeout)) {
+			for(Map.Entry<Server, CompletableFuture<Integer>> e : running.entrySet())
+				if(!e.getValue().isDone() && e.getKey().terminate())
+					how.put(e.getKey(), "terminated");
+			if(!await(running, this.termTimeout)) {
+				for(Map.Entry<Server, CompletableFuture<Integer>> e : running.entrySet())
+					if(!e.getValue().isDone() && e.getKey().kill())
+						how.put(e.getKey(), "killed");
+				await(running, 5);
+			}
+		}
+
+		for(Server srv : running.keySet()) {
+			Long t = times.get(srv);
+			if(t == null)
+				System.err.println("[Shutdown] [!] Server #"+srv.getID()+" did not exit.");
+			else
+				System.out.println("[Shutdown] Server #"+srv.getID()+" exited after "+String.format("%.1fs", t / 1000.0)+" ("+how.get(srv)+")");
+		}
+		System.out.println("[Shutdown] Done after "+String.format("%.1fs", (System.currentTimeMillis() - begin) / 1000.0)+".");
+	}
+
+	/**
+	 * Waits until all processes have exited.
+	 * @return false if the timeout has expired before
+	 */
+	private static boolean await(Map<Server, CompletableFuture<Integer>> running, long seconds) {
+		ArrayList<CompletableFuture<Integer>> l = new ArrayList<CompletableFuture<Integer>>(running.values());
+		try {
+			CompletableFuture.allOf(l.toArray(new CompletableFuture<?>[l.size()])).get(seconds, TimeUnit.SECONDS);
+			return true;
+		} catch (TimeoutException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package zombie.limgr;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Snapshot backups ([Backup] format=snapshot): the files directory is copied to
+ * backups/&lt;desc&gt;.snap while saving is paused (save-off, save-all flush, save-on).
+ * On file systems with copy-on-write (btrfs, XFS with reflink) the copy is a reflink copy
+ * (cp --reflink=always) and takes well under a second. Otherwise files that haven't changed
+ * since the previous snapshot are hard linked to it and only the others are copied.
+ * Snapshots are never written to; a restore copies them. With [Backup] snapshot-compress=true
+ * older snapshots are packed to &lt;desc&gt;.zip by a single background thread and removed. The newest
+ * one is kept as a directory, it is the base for the hard links of the next snapshot.
+ */
+public class Snapshot {
+
+	public static final String EXT = ".snap";
+
+	private static final Map<String, Boolean> reflink = new HashMap<String, Boolean>();
+	private static final Set<String> compressing = Collections.synchronizedSet(new HashSet<String>());
+	private static final ExecutorService compressor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Snapshot compressor");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+	});
+
+	/**
+	 * @return true for [Backup] format=snapshot
+	 */
+	public static boolean isEnabled() {
+		return Main.getSetting("Backup", "format", "zip").equalsIgnoreCase("snapshot");
+	}
+
+	/**
+	 * Tries a reflink copy in the directory, the result is cached.
+	 * @param dir
+	 * @return true if cp --reflink=always works there
+	 */
+	public static boolean supportsReflink(File dir) {
+		String key = dir.getAbsolutePath();
+		synchronized (reflink) {
+			Boolean b = reflink.get(key);
+			if(b != null)
+				return b;
+			File probe = new File(dir, ".reflink-probe");
+			File copy = new File(dir, ".reflink-probe.copy");
+			boolean ok = false;
+			try {
+				try (FileOutputStream out = new FileOutputStream(probe)) {
+					out.write(new byte[4096]);
+				}
+				ok = exec(60, "cp", "--reflink=always", probe.getPath(), copy.getPath());
+			}catch (IOException e) {
+				ok = false;
+			}finally {
+				probe.delete();
+				copy.delete();
+			}
+			System.out.println("Copy-on-write (reflink) in "+dir.getPath()+": "+(ok ? "yes" : "no, snapshots use hard links"));
+			reflink.put(key, ok);
+			return ok;
+		}
+	}
+
+	/**
+	 * Takes a snapshot of the files of a server, pausing the saves of a running server meanwhile.
+	 * @param srv
+	 * @param dest Snapshot directory to be created
+	 * @return true if successful
+	 */
+	public static boolean create(Server srv, File dest) {
+		File files = new File(srv.getDir(), "files");
+		File backups = dest.getParentFile();
+		File previous = getLatestSnapshot(backups);
+		boolean live = srv.getState() == Server.State.ONLINE;
+		String prefix = "[Server # "+srv.getID()+"] ";
+		if(live) {
+			long cursor = srv.getConsoleBuffer().getCursor();
+			srv.sendCommand("save-off");
+			srv.sendCommand("save-all flush");
+			if(!awaitLine(srv, cursor, Main.getSetting("Backup", "saved-pattern", "Saved the game"), 60000))
+				System.err.println("[!] "+prefix+"No save confirmation on the console, taking the snapshot anyway.");
+		}
+		long t0 = System.currentTimeMillis();
+		boolean cow = supportsReflink(Main.deploymentDir);
+		try {
+			if(cow) {
+				if(!exec(3600, "cp", "-a", "--reflink=always", files.getPath(), dest.getPath()))
+					throw new IOException("cp --reflink failed");
+			}else {
+				linkFarm(files.toPath(), dest.toPath(), previous == null ? null : previous.toPath());
+			}
+		}catch (IOException e) {
+			System.err.println("[!] "+prefix+"Snapshot failed. ("+e.getMessage()+")");
+			try {
+				if(dest.exists())
+					Util.deleteFileOrFolder(dest.toPath());
+			}catch (IOException x) {}
+			return false;
+		}finally {
+			if(live)
+				srv.sendCommand("save-on");
+		}
+		System.out.println(prefix+"Snapshot "+dest.getName()+" taken in "+(System.currentTimeMillis() - t0)+"ms ("+(cow ? "reflink" : "hard links")+")"
+				+(live ? ", saving was paused meanwhile." : "."));
+		if(Main.getSetting("Backup", "snapshot-compress", "false").equalsIgnoreCase("true")) {
+			File[] all = backups.listFiles();
+			if(all != null)
+				for(File f : all)
+					if(f.isDirectory() && f.getName().endsWith(EXT) && !f.equals(dest))
+						compressLater(srv, f);
+		}
+		return true;
+	}
+
+	/**
+	 * Waits for a console line of the server.
+	 * @return false if it didn't show up in time
+	 */
+	private static boolean awaitLine(Server srv, long cursor, String regex, long timeout) {
+		Pattern p = Pattern.compile(regex, Pattern.LITERAL);
+		long deadline = System.currentTimeMillis() + timeout;
+		try {
+			long remaining;
+			while((remaining = deadline - System.currentTimeMillis()) > 0) {
+				ConsoleBuffer.Slice s = srv.getConsoleBuffer().awaitSince(cursor, remaining);
+				for(String line : s.lines)
+					if(p.matcher(line).find())
+						return true;
+				cursor = s.cursor;
+			}
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	/**
+	 * Copies src to dest, files that are unchanged in previous (same size and time) are hard linked.
+	 */
+	private static void linkFarm(final Path src, final Path dest, final Path previous) throws IOException {
+		Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				Files.createDirectories(dest.resolve(src.relativize(dir)));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Path rel = src.relativize(file);
+				Path target = dest.resolve(rel);
+				if(previous != null && attrs.isRegularFile()) {
+					Path old = previous.resolve(rel);
+					if(Files.isRegularFile(old) && Files.size(old) == attrs.size()
+							&& Files.getLastModifiedTime(old).equals(attrs.lastModifiedTime())) {
+						try {
+							Files.createLink(target, old);
+							return FileVisitResult.CONTINUE;
+						}catch (IOException | UnsupportedOperationException e) {} //Copy instead
+					}
+				}
+				Files.copy(file, target, StandardCopyOption.COPY_ATTRIBUTES);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Copies a snapshot for a restore, as reflink copy if possible. The copy never shares blocks
+	 * or inodes the server could write to with the snapshot.
+	 * @param snapshot
+	 * @param dest Directory to be filled
+	 * @throws IOException
+	 */
+	public static void restore(File snapshot, File dest) throws IOException {
+		if(supportsReflink(Main.deploymentDir)) {
+			if(!exec(3600, "cp", "-a", "--reflink=always", snapshot.getPath()+File.separator+".", dest.getPath()))
+				throw new IOException("cp --reflink failed");
+			return;
+		}
+		final Path src = snapshot.toPath(), target = dest.toPath();
+		Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				Files.createDirectories(target.resolve(src.relativize(dir)));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.copy(file, target.resolve(src.relativize(file)), StandardCopyOption.COPY_ATTRIBUTES);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Packs a snapshot into a ZIP next to it on the background thread and deletes the snapshot.
+	 * Not for the newest snapshot, the next one is linked against it.
+	 * @param srv
+	 * @param snapshot
+	 */
+	public static void compressLater(final Server srv, final File snapshot) {
+		final String name = snapshot.getName().substring(0, snapshot.getName().length() - EXT.length());
+		if(!compressing.add(snapshot.getAbsolutePath()))
+			return; //Already queued
+		compressor.execute(new Runnable() {
+			public void run() {
+				try {
+					compress(srv, snapshot, name);
+				}finally {
+					compressing.remove(snapshot.getAbsolutePath());
+				}
+			}
+		});
+	}
+
+	private static void compress(Server srv, File snapshot, String name) {
+		if(!snapshot.isDirectory())
+			return; //Deleted meanwhile
+		if(Main.pressure != null)
+			Main.pressure.defer("Compression of snapshot "+name+" of server #"+srv.getID());
+		File zip = new File(snapshot.getParentFile(), name+".zip");
+		File tmp = new File(snapshot.getParentFile(), "."+name+".zip.tmp");
+		ParallelZip z = ParallelZip.fromConfig();
+		if(!new ParallelZip(1, z.getLevel(), z.getBlockSize()).zip(snapshot, tmp) || !tmp.renameTo(zip)) {
+			tmp.delete();
+			System.err.println("[!] [Server # "+srv.getID()+"] Couldn't compress the snapshot "+name+", it is kept.");
+			return;
+		}
+		try {
+			Util.deleteFileOrFolder(snapshot.toPath());
+			System.out.println("[Server # "+srv.getID()+"] Snapshot "+name+" compressed. ("+ResourceSampler.formatBytes(zip.length())+")");
+		} catch (IOException e) {
+			System.err.println("[!] [Server # "+srv.getID()+"] Couldn't delete the compressed snapshot "+name+".");
+		}
+	}
+
+	/**
+	 * @param dir Backup directory of a server
+	 * @return The newest snapshot, NULL if none
+	 */
+	public static File getLatestSnapshot(File dir) {
+		File latest = null;
+		File[] files = dir.listFiles();
+		if(files != null)
+			for(File f : files)
+				if(f.isDirectory() && f.getName().endsWith(EXT) && (latest == null || f.lastModified() > latest.lastModified()))
+					latest = f;
+		return latest;
+	}
+
+	private static boolean exec(long timeout, String... cmd) throws IOException {
+		Process p = new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.appendTo(new File("/dev/null"))).start();
+		try {
+			if(!p.waitFor(timeout, TimeUnit.SECONDS)) {
+				p.destroyForcibly();
+				return false;
+			}
+			return p.exitValue() == 0;
+		} catch (InterruptedException e) {
+			p.destroyForcibly();
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package zombie.limgr;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Restores a backup without deleting the files directory first ([Backup] restore=staged).
+ * The backup is extracted into files.staging next to files while the server keeps running and
+ * checked against the backup. Then the server is stopped, files is renamed to files.old and
+ * files.staging to files, the server is started again and files.old is deleted in the background.
+ * A restore.ready file marks a complete staging directory, so {@link #recover(File)} can finish or
+ * roll back a swap that was interrupted by a crash.
+ */
+public class StagedRestore {
+
+	public static final String STAGING = "files.staging";
+	public static final String OLD = "files.old";
+	public static final String READY = "restore.ready";
+
+	/**
+	 * @return true for [Backup] restore=staged
+	 */
+	public static boolean isEnabled() {
+		return Main.getSetting("Backup", "restore", "staged").equalsIgnoreCase("staged");
+	}
+
+	/**
+	 * @param srv
+	 * @param backup ZIP, manifest or snapshot directory
+	 * @return true if successful
+	 */
+	public static boolean apply(Server srv, File backup) {
+		File dir = srv.getDir();
+		File files = new File(dir, "files");
+		File staging = new File(dir, STAGING);
+		File ready = new File(dir, READY);
+		String prefix = "[Server # "+srv.getID()+"] ";
+		boolean stopped = false;
+		try {
+			ready.delete();
+			if(staging.exists())
+				Util.deleteFileOrFolder(staging.toPath()); //Left over from an aborted restore
+			if(!staging.mkdir())
+				throw new IOException("Couldn't create "+staging.getPath());
+
+			//Extract while the server is running
+			boolean manifest = backup.getName().endsWith(".manifest");
+			if(backup.isDirectory())
+				Snapshot.restore(backup, staging);
+			else if(manifest ? !ChunkStore.forServer(srv).restore(backup, staging) : !Util.unzip(backup, staging))
+				throw new IOException("Extracting failed");
+			if(!backup.isDirectory()) //A copy of a snapshot is checked by cp / Files.copy
+				verify(backup, manifest, staging);
+			if(!ready.createNewFile())
+				throw new IOException("Couldn't create "+ready.getPath());
+			File old = new File(dir, OLD);
+			if(old.exists())
+				Util.deleteFileOrFolder(old.toPath());
+			System.out.println(prefix+"Backup staged, swapping. . .");
+
+			//Downtime starts here
+			long t0 = System.currentTimeMillis();
+			boolean running = !srv.onExit().isDone();
+			if(running && !stop(srv))
+				throw new IOException("Server didn't stop");
+			stopped = running;
+			synchronized (srv) { //No launch() meanwhile
+				if(!srv.onExit().isDone())
+					throw new IOException("Server has been started meanwhile");
+				Files.move(files.toPath(), old.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				try {
+					Files.move(staging.toPath(), files.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				}catch (IOException e) {
+					Files.move(old.toPath(), files.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					throw e;
+				}
+				ready.delete();
+			}
+			if(running)
+				srv.start();
+			System.out.println(prefix+"Backup swapped in, downtime "+String.format("%.1fs", (System.currentTimeMillis() - t0) / 1000.0)+".");
+			deleteInBackground(old);
+			return true;
+		}catch (IOException e) {
+			System.err.println("[!] "+prefix+"Staged restore failed, the files are unchanged. ("+e.getMessage()+")");
+			ready.delete();
+			try {
+				if(staging.exists())
+					Util.deleteFileOrFolder(staging.toPath());
+			}catch (IOException x) {}
+			if(stopped)
+				srv.start();
+			return false;
+		}
+	}
+
+	/**
+	 * Checks that every file of the backup has been extracted with the right size.
+	 */
+	private static void verify(File backup, boolean manifest, File staging) throws IOException {
+		Map<String, Long> sizes = new HashMap<String, Long>();
+		if(manifest) {
+			for(ChunkStore.FileEntry e : ChunkStore.readManifest(backup))
+				sizes.put(e.path, e.size);
+		}else {
+			try (ZipFile z = new ZipFile(backup)) {
+				Enumeration<? extends ZipEntry> en = z.entries();
+				while(en.hasMoreElements()) {
+					ZipEntry e = en.nextElement();
+					if(!e.isDirectory())
+						sizes.put(e.getName(), e.getSize());
+				}
+			}
+		}
+		for(Map.Entry<String, Long> e : sizes.entrySet()) {
+			File f = new File(staging, e.getKey());
+			if(!f.isFile() || f.length() != e.getValue())
+				throw new IOException("Verification failed: "+e.getKey());
+		}
+	}
+
+	/**
+	 * Stops the server and waits up to [Shutdown] stop-timeout seconds.
+	 * @return false if it is still running
+	 */
+	private static boolean stop(Server srv) {
+		long timeout = 60;
+		try {
+			timeout = Long.parseLong(Main.getSetting("Shutdown", "stop-timeout", "60"));
+		}catch (NumberFormatException e) {}
+		if(!srv.stop())
+			return srv.onExit().isDone();
+		try {
+			srv.onExit().get(timeout, TimeUnit.SECONDS);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException | TimeoutException e) {
+			return srv.onExit().isDone();
+		}
+	}
+
+	private static void deleteInBackground(final File dir) {
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Util.deleteFileOrFolder(dir.toPath());
+				} catch (IOException e) {
+					System.err.println("[!] Couldn't delete "+dir.getPath()+".");
+				}
+			}
+		}, "Restore cleanup");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Finishes or rolls back a restore that was interrupted by a crash. Called on startup, before
+	 * the server directory is checked for its files directory.
+	 * @param dir Server directory
+	 */
+	public static void recover(File dir) {
+		File files = new File(dir, "files");
+		File staging = new File(dir, STAGING);
+		File old = new File(dir, OLD);
+		File ready = new File(dir, READY);
+		try {
+			if(!files.exists()) {
+				if(staging.isDirectory() && ready.isFile()) {
+					Files.move(staging.toPath(), files.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					System.out.println("[Server # "+dir.getName()+"] Interrupted restore completed.");
+				}else if(old.isDirectory()) {
+					Files.move(old.toPath(), files.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					System.out.println("[Server # "+dir.getName()+"] Interrupted restore rolled back.");
+				}
+			}
+			ready.delete();
+			if(staging.exists())
+				Util.deleteFileOrFolder(staging.toPath());
+			if(old.exists())
+				deleteInBackground(old);
+		}catch (IOException e) {
+			System.err.println("[!] [Server # "+dir.getName()+"] Couldn't recover the interrupted restore. ("+e.getMessage()+")");
+			e.printStackTrace();
+		}
+	}
+}
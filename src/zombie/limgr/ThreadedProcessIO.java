@@ -0,0 +1,67 @@
+package zombie.limgr;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Classic I/O engine: one blocking reader thread per process.
+ */
+public class ThreadedProcessIO extends ProcessIO {
+
+	@Override
+	public String getName() {
+		return "thread";
+	}
+
+	@Override
+	public Channel attach(final Process process, final String name, final Handler handler) {
+		final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
+		final AtomicBoolean destroying = new AtomicBoolean(false);
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				BufferedReader br = new BufferedReader(new InputStreamReader(process.getInputStream()));
+				String s;
+				try {
+					while ((s = br.readLine()) != null)
+						handler.onLine(s);
+				}catch(IOException e) {
+					if(!destroying.get() && process.isAlive())
+						System.err.println("[!] IOE ("+name+")");
+				}
+				int code = -1;
+				try {
+					code = process.waitFor();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				try {
+					writer.close();
+				} catch (IOException e) {}
+				handler.onExit(code);
+			}
+		}, name);
+		t.start();
+		return new Channel() {
+			public boolean send(String line) {
+				synchronized (writer) {
+					try {
+						writer.write(line+"\n");
+						writer.flush();
+						return true;
+					} catch (IOException e) {
+						e.printStackTrace();
+						return false;
+					}
+				}
+			}
+			
+			public void destroying() {
+				destroying.set(true);
+			}
+		};
+	}
+}
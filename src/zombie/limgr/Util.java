@@ -108,7 +108,7 @@ public class Util {
 	}
 
 	/**
-	 * Copy file
+	 * Copy file, keeps the modification time (the JVM checks it for AppCDS archives)
 	 * @param source
 	 * @param target
 	 * @throws IOException
@@ -124,6 +124,7 @@ public class Util {
 	            out.write(buf, 0, length);
 	        }
 	    }
+	    target.setLastModified(source.lastModified());
 	}
 	
 	/**
@@ -173,6 +174,8 @@ public class Util {
 				dest.close();
 				zis.closeEntry();
 				fos.close();
+				if(entry.getTime() != -1)
+					target_f.setLastModified(entry.getTime()); //Same mtime for every server of a template, see AppCDS
 			}
 			zis.close();
 			return true;
@@ -218,6 +221,7 @@ public class Util {
 				System.out.println("Compress: "+ f.getPath () +" ..\r\n");
 				FileInputStream fis = new FileInputStream(f);
 		        ZipEntry zipEntry = new ZipEntry(basedir.toURI().relativize(f.toURI()).getPath());
+		        zipEntry.setTime(f.lastModified()); //For the differential restore
 		        zos.putNextEntry(zipEntry);
 
 		        byte[] bytes = new byte[BUFFER];
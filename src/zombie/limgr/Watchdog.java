@@ -0,0 +1,241 @@
+package zombie.limgr;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Restarts servers that have exited without being stopped.
+ * Per server (server.ini): Restart-On-Crash, Restart-Delay (seconds, doubled with every crash
+ * in the window up to Restart-Max-Delay), Restart-Limit crashes in Restart-Window seconds
+ * before it gives up (crash loop).
+ * Host-wide at most [Watchdog] max-restarts restarts per [Watchdog] window seconds are done,
+ * further restarts wait for a free slot.
+ */
+public class Watchdog implements ServerRegistry.Listener {
+
+	public static final int HISTORY_SIZE = 20;
+
+	/**
+	 * An unexpected exit of a server and what the watchdog did about it.
+	 */
+	public static class Crash {
+		public final long time;
+		public final int exitCode;
+		public volatile String action;
+
+		Crash(long time, int exitCode, String action) {
+			this.time = time;
+			this.exitCode = exitCode;
+			this.action = action;
+		}
+	}
+
+	private class Entry {
+		final ArrayDeque<Crash> history = new ArrayDeque<Crash>();
+		ScheduledFuture<?> pending;
+	}
+
+	private final boolean enabled;
+	private final int maxRestarts;
+	private final long window;
+	private final ArrayDeque<Long> restarts = new ArrayDeque<Long>(); //Host-wide restart times
+	private final ConcurrentHashMap<Integer, Entry> entries = new ConcurrentHashMap<Integer, Entry>();
+	private final ScheduledExecutorService executor;
+
+	/**
+	 * @param enabled
+	 * @param maxRestarts Restarts of all servers allowed per window
+	 * @param window Seconds
+	 */
+	public Watchdog(boolean enabled, int maxRestarts, long window) {
+		this.enabled = enabled;
+		this.maxRestarts = Math.max(1, maxRestarts);
+		this.window = Math.max(1, window) * 1000;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Watchdog");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	private Entry entry(Server srv) {
+		Entry e = this.entries.get(srv.getID());
+		if(e == null) {
+			Entry n = new Entry();
+			e = this.entries.putIfAbsent(srv.getID(), n);
+			if(e == null)
+				e = n;
+		}
+		return e;
+	}
+
+	/**
+	 * Called when a server has exited without stop() / kill().
+	 * @param srv
+	 * @param exitCode
+	 * @param exit Exit future of the crashed process, a restart is skipped if the server has been started since
+	 */
+	public void crashed(final Server srv, int exitCode, final CompletableFuture<Integer> exit) {
+		long now = System.currentTimeMillis();
+		ServerConfig c = srv.getConfig();
+		final Entry e = this.entry(srv);
+		final Crash crash = new Crash(now, exitCode, "");
+		synchronized (e) {
+			e.history.addLast(crash);
+			while(e.history.size() > HISTORY_SIZE)
+				e.history.removeFirst();
+			if(!this.enabled || !c.getBoolean("Restart-On-Crash", true)) {
+				crash.action = "no restart (disabled)";
+				return;
+			}
+			long crashWindow = c.getLong("Restart-Window", 600) * 1000;
+			int limit = c.getInt("Restart-Limit", 5);
+			int recent = 0;
+			for(Crash x : e.history)
+				if(x.time > now - crashWindow)
+					recent++;
+			if(recent > limit) {
+				crash.action = "given up ("+recent+" crashes in "+crashWindow / 1000+"s)";
+				System.err.println("[Watchdog] [!] Server #"+srv.getID()+" is crash looping ("+recent+" crashes in "+crashWindow / 1000+"s), no more restarts.");
+				return;
+			}
+			long delay = c.getLong("Restart-Delay", 5) * 1000L << Math.min(20, recent - 1);
+			delay = Math.min(delay, c.getLong("Restart-Max-Delay", 300) * 1000);
+			if(e.pending != null)
+				e.pending.cancel(false);
+			try {
+				e.pending = this.executor.schedule(new Runnable() {
+					public void run() {
+						restart(srv, exit, e, crash);
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			}catch (RejectedExecutionException x) {
+				crash.action = "no restart (shutting down)";
+				return;
+			}
+			crash.action = "restart in "+delay / 1000+"s";
+			System.out.println("[Watchdog] Server #"+srv.getID()+" exited unexpectedly ("+exitCode+"), restarting in "+delay / 1000+"s. . .");
+		}
+	}
+
+	private void restart(final Server srv, final CompletableFuture<Integer> exit, final Entry e, final Crash crash) {
+		synchronized (e) {
+			if(srv.onExit() != exit || !Main.servers.contains(srv.getID())) {
+				crash.action = "not restarted (started or deleted meanwhile)";
+				e.pending = null;
+				return;
+			}
+			long wait = this.reserve();
+			if(wait > 0) {
+				System.out.println("[Watchdog] Restart limit reached, Server #"+srv.getID()+" waits "+(wait + 999) / 1000+"s. . .");
+				try {
+					e.pending = this.executor.schedule(new Runnable() {
+						public void run() {
+							restart(srv, exit, e, crash);
+						}
+					}, wait, TimeUnit.MILLISECONDS);
+				}catch (RejectedExecutionException x) {
+					crash.action = "no restart (shutting down)";
+					e.pending = null;
+				}
+				return;
+			}
+			e.pending = null;
+		}
+		Server.StartResult r = srv.requestStart();
+		crash.action = r == Server.StartResult.STARTED ? "restarted" : "restart: "+r;
+		if(r != Server.StartResult.STARTED && r != Server.StartResult.QUEUED)
+			System.err.println("[Watchdog] [!] Server #"+srv.getID()+" could not be restarted. ("+r+")");
+	}
+
+	/**
+	 * Takes a host-wide restart slot.
+	 * @return 0 if taken, otherwise ms until the next slot is free
+	 */
+	private synchronized long reserve() {
+		long now = System.currentTimeMillis();
+		Iterator<Long> it = this.restarts.iterator();
+		while(it.hasNext())
+			if(it.next() <= now - this.window)
+				it.remove();
+		if(this.restarts.size() >= this.maxRestarts)
+			return this.restarts.peekFirst() + this.window - now;
+		this.restarts.addLast(now);
+		return 0;
+	}
+
+	/**
+	 * Cancels a pending restart. (Server stopped by the user)
+	 * @param srv
+	 */
+	public void cancel(Server srv) {
+		Entry e = this.entries.get(srv.getID());
+		if(e == null)
+			return;
+		synchronized (e) {
+			if(e.pending != null && e.pending.cancel(false)) {
+				e.history.peekLast().action = "restart cancelled";
+				System.out.println("[Watchdog] Restart of Server #"+srv.getID()+" cancelled.");
+			}
+			e.pending = null;
+		}
+	}
+
+	/**
+	 * @param srv
+	 * @return true if a restart is scheduled
+	 */
+	public boolean isPending(Server srv) {
+		Entry e = this.entries.get(srv.getID());
+		if(e == null)
+			return false;
+		synchronized (e) {
+			return e.pending != null && !e.pending.isDone();
+		}
+	}
+
+	/**
+	 * @param srv
+	 * @return The last unexpected exits of the server, oldest first
+	 */
+	public List<Crash> getHistory(Server srv) {
+		Entry e = this.entries.get(srv.getID());
+		if(e == null)
+			return new ArrayList<Crash>();
+		synchronized (e) {
+			return new ArrayList<Crash>(e.history);
+		}
+	}
+
+	/**
+	 * Stops all pending restarts.
+	 */
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+
+	@Override
+	public void onAdded(Server srv) {}
+
+	@Override
+	public void onRemoved(Server srv) {
+		this.cancel(srv);
+		this.entries.remove(srv.getID());
+	}
+}
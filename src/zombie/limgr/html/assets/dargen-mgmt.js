@@ -37,8 +37,10 @@ function refresh_list() {
 			set += "<td>#"+data[0]+"</td>"; //ID
 			set += "<td>"+data[1]+"</td>"; //PORT
 			set += "<td><span class=\"badge badge-pill badge-light\">"+data[2]+"</span></td>" //STATUS
-			set += "<td>"+data[3]+"</td>"; //DESC
-			if (data[2]=="OFFLINE")
+			set += "<td>"+(data[3]=="-" ? "-" : data[3]+"%")+"</td>"; //CPU
+			set += "<td>"+data[4]+"</td>"; //RAM
+			set += "<td>"+data.slice(5).join("_")+"</td>"; //DESC
+			if (data[2]=="OFFLINE" || data[2]=="ERROR" || data[2]=="HIBERNATING")
 				set += `
 				<td>
 					<button onclick="server_start(`+data[0]+`)" class="btn btn-sm btn-outline-primary" style="margin-right: .5em;">
@@ -82,7 +84,7 @@ function serverview_refresh(id){
 		document.getElementById("sstatus").innerHTML = response;
 		
 		
-		if(response == "OFFLINE"){
+		if(response == "OFFLINE" || response == "ERROR" || response == "HIBERNATING"){
 			document.getElementById("btns").innerHTML = `
 				<a href="/" class="btn btn-light"><i class="fa fa-arrow-left" aria-hidden="true"></i></a>
 				<button onclick="server_start(`+id+`)" class="btn btn-sm btn-primary"><i class="fa fa-play" aria-hidden="true"></i> Start</button>
@@ -100,20 +102,100 @@ function serverview_refresh(id){
 	
 }
 
-function refresh_console(id){
+var console_cursor = 0;
+
+function escape_html(s){
+	return s.replace(/&/g, '&amp;').replace(/</g, '&lt;').replace(/>/g, '&gt;');
+}
+
+function console_append(lines){
+	var con = document.getElementById("console");
+	var set = "";
+	for(var i = 0;i < lines.length;i++){
+		set += escape_html(lines[i]) + "<br />";
+	}
+	if(set != ""){
+		con.insertAdjacentHTML("beforeend", set);
+		con.scrollTop = con.scrollHeight;
+	}else if(console_cursor == 0){
+		con.innerHTML = "- {lang:c_empty} -";
+	}
+}
+
+function refresh_console(id, wait, callback){
 	var xhttp = new XMLHttpRequest();
-	xhttp.open("GET", "?console="+id, true);
+	var url = "?console="+id+"&since="+console_cursor;
+	if(wait)
+		url += "&wait="+wait;
+	xhttp.open("GET", url, true);
 	xhttp.onload = function() {
-		var response = this.responseText.replace(/(?:\r\n|\r|\n)/g, '<br />');
-		if(document.getElementById("console").innerHTML != response){
-			document.getElementById("console").innerHTML = response;
-			document.getElementById("console").scrollTop = document.getElementById("console").scrollHeight;
+		var response = this.responseText.split("\n");
+		var header = response[0].split(" ");
+		if(isNaN(parseInt(header[0]))){
+			window.location.reload(false);
+			return;
 		}
+		if(header[1] == "reset")
+			document.getElementById("console").innerHTML = "";
+		console_cursor = parseInt(header[0]);
+		console_append(response.slice(1, response.length - 1));
+		if(callback)
+			callback(true);
+	};
+	xhttp.onerror = function() {
+		if(callback)
+			callback(false);
 	};
 	xhttp.send();
 	
 }
 
+var console_source = null;
+var console_pending = [];
+
+/* Streams the console via Server-Sent Events, falls back to long-polling. */
+function console_stream(id){
+	if(typeof(EventSource) === "undefined"){
+		console_longpoll(id);
+		return;
+	}
+	console_source = new EventSource("?console-stream="+id+"&since="+console_cursor);
+	console_source.addEventListener("reset", function(e) {
+		console_pending = [];
+		document.getElementById("console").innerHTML = "";
+		console_cursor = parseInt(e.lastEventId);
+		console_append([]);
+	});
+	console_source.onmessage = function(e) {
+		var seq = parseInt(e.lastEventId);
+		if(seq <= console_cursor)
+			return;
+		console_cursor = seq;
+		if(console_pending.length == 0){
+			setTimeout(function() {
+				var lines = console_pending;
+				console_pending = [];
+				console_append(lines);
+			}, 50);
+		}
+		console_pending.push(e.data);
+	};
+	console_source.onerror = function() {
+		if(console_source.readyState == EventSource.CLOSED){
+			console_source = null;
+			console_longpoll(id);
+		}
+	};
+}
+
+function console_longpoll(id){
+	refresh_console(id, 25000, function(success) {
+		setTimeout(function() {
+			console_longpoll(id);
+		}, success ? 0 : 1000);
+	});
+}
+
 function server_command(id, cmd){
 	setTimeout(function() {
 		var xhttp = new XMLHttpRequest();
@@ -125,7 +207,7 @@ function server_command(id, cmd){
 				  style: 'bootstrap'
 				});
 			refresh_list();
-		}else{
+		}else if(console_source == null){
 			refresh_console(id);
 		}
     }, 0);
@@ -146,6 +228,16 @@ function server_start(id) {
 			  style: 'bootstrap'
 			});
 		refresh_list();
+	}else if(resp=="start "+id+"\nQUEUED"){
+		$.notify({lang:server_start_queued}, 'info', {
+			  style: 'bootstrap'
+			});
+		refresh_list();
+	}else if(resp=="start "+id+"\nNO_MEMORY"){
+		$.notify({lang:server_start_nomem}, 'error', {
+			  style: 'bootstrap'
+			});
+		refresh_list();
 	}else{
 		$.notify({lang:server_start_fail}, 'error', {
 			  style: 'bootstrap'
@@ -214,6 +306,8 @@ function server_create(port, name, ram, template, autostart) {
 			  style: 'bootstrap'
 			});
 	}
+	if(port == "")
+		port = "auto";
 	var xhttp = new XMLHttpRequest();
 	xhttp.open("GET", "?create="+port+"&template="+template+"&desc="+name+"&memory="+ram+"&autostart="+autostart, true);
 	xhttp.onload = function() {
@@ -243,6 +337,10 @@ function server_backup_apply(id, desc){
 				  style: 'bootstrap'
 				});
 			window.location.reload(false); 
+		}else if(resp=="backup-apply "+id+"\nQUEUED"){
+			$.notify({lang:server_backup_apply_queued}, 'info', {
+				  style: 'bootstrap'
+				});
 		}else{
 			$.notify({lang:server_backup_apply_fail}, 'error', {
 				  style: 'bootstrap'
@@ -285,6 +383,10 @@ function server_mkbackup(id, desc){
 				  style: 'bootstrap'
 				});
 			window.location.reload(false); 
+		}else if(resp=="backup-create "+id+"\nQUEUED"){
+			$.notify({lang:server_mkbackup_queued}, 'info', {
+				  style: 'bootstrap'
+				});
 		}else{
 			$.notify({lang:server_mkbackup_fail}, 'error', {
 				  style: 'bootstrap'
@@ -1,14 +1,21 @@
 package zombie.limgr.interfaces;
 
+import java.io.File;
 import java.io.PrintStream;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
 
-import org.ini4j.Ini;
-
+import zombie.limgr.ChunkStore;
 import zombie.limgr.Main;
+import zombie.limgr.ParallelZip;
+import zombie.limgr.ResourceSampler;
 import zombie.limgr.Server;
+import zombie.limgr.ServerConfig;
 import zombie.limgr.Util;
+import zombie.limgr.Watchdog;
 
 /**
  * Command Line INTERFACE - bedient das System vom Terminal aus.
@@ -57,6 +64,10 @@ public class CLI {
 		this.commands.add(new CommandDelete());
 		this.commands.add(new CommandConfig());
 		this.commands.add(new CommandBackup());
+		this.commands.add(new CommandConsole());
+		this.commands.add(new CommandStats());
+		this.commands.add(new CommandCrashes());
+		this.commands.add(new CommandPressure());
 	}
 
 	private Command getCommand(String name) {
@@ -105,10 +116,10 @@ public class CLI {
 		public String getName() { return "list"; }
 
 		@Override
-		public String getUsage() { return "list [servers/templates]"; }
+		public String getUsage() { return "list [servers/templates/profiles]"; }
 
 		@Override
-		public String getDescription() { return "Lists all registered servers or templates.\r\n"; }
+		public String getDescription() { return "Lists all registered servers, templates or JVM profiles.\r\n"; }
 
 		@Override
 		public String[] getAliases() {
@@ -124,14 +135,38 @@ public class CLI {
 						out.println("None.");
 					else
 					for(Server srv : Main.servers) {
-						out.println("#" + srv.getID()+" - "+srv.getPort()+" - "+srv.getState().toString()+" - "+srv.getDesc());
+						String state = srv.getState().toString();
+						if(srv.getState() == Server.State.ONLINE && srv.getTimeToReady() >= 0)
+							state += " (ready after "+String.format("%.1fs", srv.getTimeToReady() / 1000.0)+")";
+						ResourceSampler.Sample sample = Main.sampler == null ? null : Main.sampler.latest(srv);
+						if(sample != null)
+							state += " - CPU "+String.format("%.1f%%", sample.cpu)+" RAM "+ResourceSampler.formatBytes(sample.rss);
+						String limits = Main.governor == null ? null : Main.governor.describe(srv);
+						if(limits != null)
+							state += " ["+limits+"]";
+						out.println("#" + srv.getID()+" - "+srv.getPort()+" - "+state+" - "+srv.getDesc());
 					}
+					if(Main.admission != null && Main.admission.getBudget() > 0)
+						out.println("Memory: "+Main.admission.getCommitted()+"M / "+Main.admission.getBudget()+"M reserved"
+								+(Main.admission.getQueueLength() > 0 ? ", "+Main.admission.getQueueLength()+" queued" : ""));
 					return true;
 				}else if(args[0].equalsIgnoreCase("templates") || args[0].equalsIgnoreCase("t")) {
 					out.println("== TEMPLATE DIRECTORY ==");
 					for(String s : Server.getTemplates()) {
 						out.println(s);
 					}
+					if(Main.appcds != null && Main.appcds.isEnabled()) {
+						out.println("== APPCDS ARCHIVES ==");
+						for(String s : Main.appcds.getArchives())
+							out.println(s);
+					}
+					return true;
+				}else if(args[0].equalsIgnoreCase("profiles") || args[0].equalsIgnoreCase("p")) {
+					out.println("== JVM PROFILES (Cmdline=<NAME>) ==");
+					out.println("java-default: java -Xmx{MEM}M -jar server.jar");
+					if(Main.config.get("Profiles") != null)
+						for(String name : Main.config.get("Profiles").keySet())
+							out.println(name+": "+Main.config.get("Profiles", name));
 					return true;
 				}else {
 					err.println("Syntax: " + this.getUsage());
@@ -178,7 +213,22 @@ public class CLI {
 					for(String sid : ids) {
 						Server srvr = Server.getByID(Integer.parseInt(sid));
 						if(srvr != null) {
-							srvr.start();
+							switch(srvr.requestStart()) {
+							case QUEUED:
+								out.println("Server #"+sid+": Not enough memory, start queued.");
+								break;
+							case NO_MEMORY:
+								err.println("Server #"+sid+": Not enough memory ("+Main.admission.getDemand(srvr)+"M needed, "+Main.admission.getFree()+"M free).");
+								break;
+							case RUNNING:
+								err.println("Server #"+sid+" is already running.");
+								break;
+							case FAILED:
+								err.println("[!] Error starting server #"+sid);
+								break;
+							default:
+								break;
+							}
 						}
 						else {
 							err.println("404: Server # "+ sid +" not found.\r\n");
@@ -458,7 +508,7 @@ public class CLI {
 		public String getName() { return "create"; }
 
 		@Override
-		public String getUsage() { return "create <PORT> <TEMPLATE> <RAM (MB)> <AUTOSTART (true/false)> <DESC..>"; }
+		public String getUsage() { return "create <PORT/auto> <TEMPLATE> <RAM (MB)> <AUTOSTART (true/false)> <DESC..>"; }
 
 		@Override
 		public String getDescription() { return "Creates a new server.\r\n"; }
@@ -478,7 +528,7 @@ public class CLI {
 			if(args.length > 3) {
 				int port;
 				try {
-					port = Integer.parseInt(args[0]);
+					port = args[0].equalsIgnoreCase("auto") ? 0 : Integer.parseInt(args[0]);
 				}catch(NumberFormatException e) {
 					err.println("Invalid entry: " + args [0] + ".\r\n");
 					return false;
@@ -583,7 +633,7 @@ public class CLI {
 		public String getName() { return "conf"; }
 
 		@Override
-		public String getUsage() { return "conf <ID> [SETTING] [VALUE..]"; }
+		public String getUsage() { return "conf <ID>[ID,ID,ID..] [SETTING] [VALUE..]"; }
 
 		@Override
 		public String getDescription() { return "Manages the settings file of a server (server.ini).\r\n"; }
@@ -595,41 +645,38 @@ public class CLI {
 
 		@Override
 		public boolean onCommand(String[] args, PrintStream out, PrintStream err) {
-			if(args.length >= 1) {
+			if(args.length >= 1 && args[0] != "") {
 				try {
-					int id = Integer.parseInt(args[0]);
-					Server srv = Server.getByID(id);
-					if(srv == null) {
-						err.println("[!] 404: Server #"+id+" nicht gefunden.");
-						return false;
-					}else {
-						Ini ini = srv.getIni();
-						if(ini == null)
-							return false;
-						if(args.length == 1) {
-							out.println("== SERVER CONFIG FILE #"+id+" ==");
-							
-							for(String val : ini.get("Server").keySet())
-								out.println(val + ": " + ini.get("Server", val));
-							return true;
-							
-						}else if(args.length == 2) {
-							out.println("[Server #"+id+"] "+args[1]+": "+ini.get("Server", args[1]));
-							return true;
+					boolean b = true;
+					for(String sid : args[0].split(",")) {
+						int id = Integer.parseInt(sid);
+						Server srv = Server.getByID(id);
+						if(srv == null) {
+							err.println("[!] 404: Server #"+id+" nicht gefunden.");
+							b = false;
 						}else {
-							String val = args[2];
-							if(args.length > 3)
-							for (int i = 3; i < args.length; i++) {
-								val = val + " "+ args[i];
+							ServerConfig conf = srv.getConfig();
+							if(args.length == 1) {
+								out.println("== SERVER CONFIG FILE #"+id+" ==");
+								
+								for(String val : conf.keySet())
+									out.println(val + ": " + conf.get(val));
+								
+							}else if(args.length == 2) {
+								out.println("[Server #"+id+"] "+args[1]+": "+conf.get(args[1]));
+							}else {
+								String val = args[2];
+								if(args.length > 3)
+								for (int i = 3; i < args.length; i++) {
+									val = val + " "+ args[i];
+								}
+								
+								conf = srv.setConfig(args[1], val);
+								out.println("[Server #"+id+"] "+args[1]+": "+conf.get(args[1]));
 							}
-							
-							ini.put("Server", args[1], val);
-							ini.store();
-							
-							out.println("[Server #"+id+"] "+args[1]+": "+ini.get("Server", args[1]));
-							return true;
 						}
 					}
+					return b;
 				} catch (NumberFormatException e) {
 					err.println("Syntax: " + this.getUsage());
 				} catch (Throwable e) {
@@ -656,7 +703,7 @@ public class CLI {
 		public String getName() { return "backup"; }
 
 		@Override
-		public String getUsage() { return "backup <ID>[ID,ID,ID..] <list/create/delete/apply> [Description]\r\n"; }
+		public String getUsage() { return "backup <ID>[ID,ID,ID..] <list/create/delete/apply/bench/gc> [Description]\r\n"; }
 
 		@Override
 		public String getDescription() { return "Manages server backups.\r\n"; }
@@ -689,7 +736,15 @@ public class CLI {
 										desc = desc + " "+ args[i];
 									}
 								}
-								srvr.createBackup(desc);
+								if(srvr.createBackup(desc) == Server.BackupResult.QUEUED)
+									out.println("Backup of server #"+srvr.getID()+" queued, the system is under pressure. See the log for the result.");
+								
+							}else if(args[1].equalsIgnoreCase("gc")) {
+								ChunkStore.forServer(srvr).gc();
+								
+							}else if(args[1].equalsIgnoreCase("bench")) {
+								if(!ParallelZip.fromConfig().benchmark(new File(srvr.getDir(), "files"), srvr.getDir(), out))
+									err.println("[!] Backup benchmark of server #"+srvr.getID()+" failed.");
 								
 							}else if(args[1].equalsIgnoreCase("delete")) {
 								if(args.length >= 3) {
@@ -710,7 +765,8 @@ public class CLI {
 									for (int i = 3; i < args.length; i++) {
 										desc = desc + " "+ args[i];
 									}
-									srvr.applyBackup(desc);
+									if(srvr.applyBackup(desc) == Server.BackupResult.QUEUED)
+										out.println("Restore of server #"+srvr.getID()+" queued, the system is under pressure. See the log for the result.");
 								}else {
 									err.println("Syntax: " + this.getUsage());
 									return false;
@@ -738,4 +794,189 @@ public class CLI {
 		}
 		
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Command to print the console history of a server.
+	 * @author Dargen_
+	 *
+	 */
+	public class CommandConsole implements Command {
+
+		@Override
+		public String getName() { return "console"; }
+
+		@Override
+		public String getUsage() { return "console <ID> [LINES]"; }
+
+		@Override
+		public String getDescription() { return "Prints the latest console output of a server.\r\n"; }
+
+		@Override
+		public String[] getAliases() {
+			return new String[] { "log", "tail" };
+		}
+
+		@Override
+		public boolean onCommand(String[] args, PrintStream out, PrintStream err) {
+			if(args[0]=="" || args.length > 2) {
+				err.println("Syntax: " + this.getUsage());
+				return false;
+			}
+			try {
+				Server srvr = Server.getByID(Integer.parseInt(args[0]));
+				if(srvr == null) {
+					err.println("404: Server # "+ args[0] +" not found.\r\n");
+					return false;
+				}
+				int n = 50;
+				if(args.length == 2)
+					n = Integer.parseInt(args[1]);
+				out.println("== CONSOLE #"+srvr.getID()+" ==");
+				for(String s : srvr.getConsoleBuffer().tail(n))
+					out.println(s);
+				return true;
+			} catch (NumberFormatException e) {
+				err.println("Invalid entry: " + String.join(" ", args) + ".\r\n");
+				return false;
+			}
+		}
+		
+	}
+	
+	public class CommandStats implements Command {
+
+		@Override
+		public String getName() { return "stats"; }
+
+		@Override
+		public String getUsage() { return "stats <ID> [MINUTES]"; }
+
+		@Override
+		public String getDescription() { return "Shows the CPU, RAM and disk usage of a server. (Default: last 5 minutes)\r\n"; }
+
+		@Override
+		public String[] getAliases() {
+			return new String[] { "top" };
+		}
+
+		@Override
+		public boolean onCommand(String[] args, PrintStream out, PrintStream err) {
+			if(args[0]=="" || args.length > 2) {
+				err.println("Syntax: " + this.getUsage());
+				return false;
+			}
+			try {
+				Server srvr = Server.getByID(Integer.parseInt(args[0]));
+				if(srvr == null) {
+					err.println("404: Server # "+ args[0] +" not found.\r\n");
+					return false;
+				}
+				long minutes = 5;
+				if(args.length == 2)
+					minutes = Long.parseLong(args[1]);
+				ResourceSampler.History h = Main.sampler == null ? null : Main.sampler.get(srvr);
+				List<ResourceSampler.Sample> samples = h == null ? new ArrayList<ResourceSampler.Sample>() : h.since(System.currentTimeMillis() - minutes * 60000);
+				out.println("== STATS #"+srvr.getID()+" ("+srvr.getState()+", pid "+srvr.pid+") ==");
+				if(samples.isEmpty()) {
+					out.println("No data.");
+					return true;
+				}
+				SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss");
+				float cpuMax = 0, cpuSum = 0;
+				long rssMax = 0;
+				for(ResourceSampler.Sample sample : samples) {
+					out.println(time.format(new Date(sample.time))+" - "+sample);
+					cpuMax = Math.max(cpuMax, sample.cpu);
+					cpuSum += sample.cpu;
+					rssMax = Math.max(rssMax, sample.rss);
+				}
+				out.println("Avg CPU "+String.format("%.1f%%", cpuSum / samples.size())+" - Max CPU "+String.format("%.1f%%", cpuMax)+" - Max RAM "+ResourceSampler.formatBytes(rssMax));
+				return true;
+			} catch (NumberFormatException e) {
+				err.println("Invalid entry: " + String.join(" ", args) + ".\r\n");
+				return false;
+			}
+		}
+		
+	}
+	
+	public class CommandCrashes implements Command {
+
+		@Override
+		public String getName() { return "crashes"; }
+
+		@Override
+		public String getUsage() { return "crashes <ID>"; }
+
+		@Override
+		public String getDescription() { return "Shows the unexpected exits of a server and the restarts of the watchdog.\r\n"; }
+
+		@Override
+		public String[] getAliases() {
+			return new String[] { "restarts" };
+		}
+
+		@Override
+		public boolean onCommand(String[] args, PrintStream out, PrintStream err) {
+			if(args[0]=="" || args.length > 1) {
+				err.println("Syntax: " + this.getUsage());
+				return false;
+			}
+			try {
+				Server srvr = Server.getByID(Integer.parseInt(args[0]));
+				if(srvr == null) {
+					err.println("404: Server # "+ args[0] +" not found.\r\n");
+					return false;
+				}
+				out.println("== CRASHES #"+srvr.getID()+" ==");
+				List<Watchdog.Crash> crashes = Main.watchdog == null ? new ArrayList<Watchdog.Crash>() : Main.watchdog.getHistory(srvr);
+				if(crashes.isEmpty())
+					out.println("None.");
+				SimpleDateFormat time = new SimpleDateFormat("dd.MM.yyyy HH:mm:ss");
+				for(Watchdog.Crash c : crashes)
+					out.println(time.format(new Date(c.time))+" - Exit code "+c.exitCode+" - "+c.action);
+				return true;
+			} catch (NumberFormatException e) {
+				err.println("Invalid entry: " + String.join(" ", args) + ".\r\n");
+				return false;
+			}
+		}
+		
+	}
+	
+	public class CommandPressure implements Command {
+
+		@Override
+		public String getName() { return "pressure"; }
+
+		@Override
+		public String getUsage() { return "pressure"; }
+
+		@Override
+		public String getDescription() { return "Shows the CPU, memory and I/O pressure of the host and the deferred jobs.\r\n"; }
+
+		@Override
+		public String[] getAliases() {
+			return new String[] { "psi" };
+		}
+
+		@Override
+		public boolean onCommand(String[] args, PrintStream out, PrintStream err) {
+			if(Main.pressure == null || !Main.pressure.isEnabled()) {
+				err.println("Pressure monitor is disabled.");
+				return false;
+			}
+			out.println("== PRESSURE (avg10) ==");
+			out.println("CPU: "+format(Main.pressure.getCpu())+" - Memory: "+format(Main.pressure.getMemory())+" - IO: "+format(Main.pressure.getIO()));
+			out.println("Available: "+(Main.pressure.getAvailable() < 0 ? "-" : Main.pressure.getAvailable()+"M"));
+			String reason = Main.pressure.getReason();
+			out.println("Under pressure: "+(reason == null ? "no" : "yes ("+reason+")")+" - Deferred jobs: "+Main.pressure.getQueueLength());
+			return true;
+		}
+		
+		private String format(double d) {
+			return d < 0 ? "-" : String.format("%.2f%%", d);
+		}
+		
+	}
+}
@@ -0,0 +1,130 @@
+package zombie.limgr.interfaces;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import zombie.limgr.ConsoleBuffer;
+
+/**
+ * Server-Sent Events stream of a server console, served as chunked HTTP response body.
+ * Each viewer is one listener on the {@link ConsoleBuffer}, so new lines are pushed as soon
+ * as they are appended. A viewer that can't keep up is disconnected; the browser then
+ * reconnects with its Last-Event-ID and catches up from the buffer.
+ * @author Dargen_
+ *
+ */
+class ConsoleEventStream extends InputStream implements ConsoleBuffer.Listener {
+
+	private static final int QUEUE_CAPACITY = 2048;
+	private static final long KEEPALIVE_SECONDS = 15;
+
+	private static class Event {
+		final long seq;
+		final String line;
+
+		Event(long seq, String line) {
+			this.seq = seq;
+			this.line = line;
+		}
+	}
+
+	private ConsoleBuffer buffer;
+	private LinkedBlockingQueue<Event> queue = new LinkedBlockingQueue<Event>(QUEUE_CAPACITY);
+	private volatile boolean closed = false;
+	private volatile boolean overflow = false;
+
+	private byte[] chunk;
+	private int pos = 0;
+
+	/**
+	 * @param buffer Console to stream
+	 * @param since Cursor of the client (Last-Event-ID), 0 for the complete history.
+	 */
+	public ConsoleEventStream(ConsoleBuffer buffer, long since) {
+		this.buffer = buffer;
+		ConsoleBuffer.Slice slice = buffer.subscribe(this, since);
+		StringBuilder sb = new StringBuilder();
+		sb.append("retry: 3000\n\n");
+		long seq = slice.cursor - slice.lines.length;
+		if(slice.reset) //The id is the cursor before the history, the replayed lines follow it
+			sb.append("event: reset\nid: ").append(seq).append("\ndata: \n\n");
+		for(String line : slice.lines)
+			appendEvent(sb, ++seq, line);
+		this.chunk = sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void onLine(long seq, String line) {
+		if(!this.queue.offer(new Event(seq, line)))
+			this.overflow = true;
+	}
+
+	private static void appendEvent(StringBuilder sb, long seq, String line) {
+		sb.append("id: ").append(seq).append("\ndata: ").append(line.replace("\r", "")).append("\n\n");
+	}
+
+	/**
+	 * Blocks until there are new lines (or a keep-alive is due) and encodes them into the next chunk.
+	 * @return false if the stream has ended
+	 */
+	private boolean nextChunk() throws IOException {
+		if(this.closed || this.overflow)
+			return false;
+		Event e;
+		try {
+			e = this.queue.poll(KEEPALIVE_SECONDS, TimeUnit.SECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		if(this.closed)
+			return false;
+		StringBuilder sb = new StringBuilder();
+		if(e == null) {
+			sb.append(": keep-alive\n\n");
+		}else {
+			ArrayList<Event> batch = new ArrayList<Event>();
+			batch.add(e);
+			this.queue.drainTo(batch);
+			for(Event ev : batch)
+				appendEvent(sb, ev.seq, ev.line);
+		}
+		this.chunk = sb.toString().getBytes(StandardCharsets.UTF_8);
+		this.pos = 0;
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = this.read(b, 0, 1);
+		return n == -1 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0)
+			return 0;
+		if(this.pos >= this.chunk.length && !this.nextChunk())
+			return -1;
+		int n = Math.min(len, this.chunk.length - this.pos);
+		System.arraycopy(this.chunk, this.pos, b, off, n);
+		this.pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return this.chunk.length - this.pos;
+	}
+
+	@Override
+	public void close() {
+		this.closed = true;
+		this.buffer.unsubscribe(this);
+	}
+}
@@ -8,6 +8,7 @@ import java.net.URL;
 import java.nio.file.Files;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
@@ -17,8 +18,11 @@ import org.ini4j.Ini;
 import org.mindrot.jbcrypt.BCrypt;
 
 import fi.iki.elonen.NanoHTTPD;
+import zombie.limgr.ConsoleBuffer;
 import zombie.limgr.Main;
+import zombie.limgr.ResourceSampler;
 import zombie.limgr.Server;
+import zombie.limgr.ServerConfig;
 import zombie.limgr.Util;
 
 /**
@@ -28,6 +32,9 @@ import zombie.limgr.Util;
  */
 public class HTTPD extends NanoHTTPD {
 	
+	private static final String MIME_EVENT_STREAM = "text/event-stream";
+	private static final long MAX_LONGPOLL_WAIT = 30000;
+	
 	private Ini config;
 	
 	private HashMap<UUID, HashMap<String, String>> sessions;
@@ -149,8 +156,11 @@ public class HTTPD extends NanoHTTPD {
 					try {
 						int id = Integer.parseInt(parms.get("start"));
 						Server srv = Server.getByID(id);
-						if(srv != null && srv.start()) {
+						Server.StartResult r = srv == null ? Server.StartResult.FAILED : srv.requestStart();
+						if(r == Server.StartResult.STARTED) {
 							return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, "start "+id+"\nSUCCESS");
+						}else if(r == Server.StartResult.QUEUED || r == Server.StartResult.NO_MEMORY) {
+							return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, "start "+id+"\n"+r);
 						}else {
 							return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, "start "+id+"\nFAILURE");
 						}
@@ -221,7 +231,9 @@ public class HTTPD extends NanoHTTPD {
 					if(parms.get("list").equalsIgnoreCase("servers")) {
 						s = "== REGISTERED SERVERS ==\n";
 						for(Server srv : Main.servers) {
-							s += srv.getID()+"_"+srv.getPort()+"_"+srv.getState()+"_"+srv.getDesc()+"\n";
+							ResourceSampler.Sample sample = Main.sampler == null ? null : Main.sampler.latest(srv);
+							String usage = sample == null ? "-_-" : String.format(Locale.ROOT, "%.1f", sample.cpu)+"_"+ResourceSampler.formatBytes(sample.rss);
+							s += srv.getID()+"_"+srv.getPort()+"_"+srv.getState()+"_"+usage+"_"+srv.getDesc()+"\n";
 						}
 					}else if(parms.get("list").equalsIgnoreCase("templates")) {
 						File f = new File("templates");
@@ -236,22 +248,82 @@ public class HTTPD extends NanoHTTPD {
 						}
 					}
 					return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, s);
+				}else if(parms.containsKey("pressure")) {
+					if(Main.pressure == null || !Main.pressure.isEnabled())
+						return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, "DISABLED");
+					return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, String.format(Locale.ROOT, "%.2f_%.2f_%.2f_%d_%d",
+							Main.pressure.getCpu(), Main.pressure.getMemory(), Main.pressure.getIO(), Main.pressure.getAvailable(), Main.pressure.getQueueLength()));
+				}else if(parms.containsKey("stats")) {
+					try {
+						Server srv = Server.getByID(Integer.parseInt(parms.get("stats")));
+						if(srv == null)
+							return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, "NOT FOUND");
+						long minutes = parms.get("minutes") == null ? 60 : Long.parseLong(parms.get("minutes"));
+						ResourceSampler.History h = Main.sampler == null ? null : Main.sampler.get(srv);
+						StringBuilder sb = new StringBuilder();
+						if(h != null)
+							for(ResourceSampler.Sample sample : h.since(System.currentTimeMillis() - minutes * 60000))
+								sb.append(sample.time).append('_').append(String.format(Locale.ROOT, "%.1f", sample.cpu)).append('_')
+									.append(sample.rss).append('_').append(sample.read).append('_').append(sample.write).append('\n');
+						return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, sb.toString());
+					}catch(NumberFormatException e) {
+						return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, Response.Status.BAD_REQUEST.getDescription());
+					}
+				}else if(parms.containsKey("console-stream")) {
+					try {
+						int id = Integer.parseInt(parms.get("console-stream"));
+						Server srv = Server.getByID(id);
+						if(srv != null) {
+							long since = 0;
+							String lastEventId = session.getHeaders().get("last-event-id");
+							if(lastEventId != null)
+								since = Long.parseLong(lastEventId.trim());
+							else if(parms.get("since") != null)
+								since = Long.parseLong(parms.get("since"));
+							Response res = newChunkedResponse(Response.Status.OK, MIME_EVENT_STREAM, new ConsoleEventStream(srv.getConsoleBuffer(), since));
+							res.addHeader("Cache-Control", "no-cache");
+							return res;
+						}
+					}catch(NumberFormatException e) {}
+					return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, Response.Status.BAD_REQUEST.getDescription());
 				}else if(parms.containsKey("console")) {
 					try {
 						int id = Integer.parseInt(parms.get("console"));
 						Server srv = Server.getByID(id);
-						if(srv != null) {
-							if(srv.getConsole() == null)
+						if(srv != null && parms.containsKey("since")) {
+							long since = Long.parseLong(parms.get("since"));
+							ConsoleBuffer.Slice slice;
+							if(parms.get("wait") != null) { //Long-poll
+								long wait = Math.min(Long.parseLong(parms.get("wait")), MAX_LONGPOLL_WAIT);
+								try {
+									slice = srv.getConsoleBuffer().awaitSince(since, wait);
+								} catch (InterruptedException e) {
+									slice = srv.getConsoleBuffer().since(since);
+								}
+							}else {
+								slice = srv.getConsoleBuffer().since(since);
+							}
+							StringBuilder sb = new StringBuilder();
+							sb.append(slice.cursor);
+							if(slice.reset)
+								sb.append(" reset");
+							sb.append('\n');
+							for(String line : slice.lines)
+								sb.append(line).append('\n');
+							return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, sb.toString());
+						}else if(srv != null) {
+							String console = srv.getConsole();
+							if(console == null)
 								return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, "- "+Main.lang.hashie.get("c_empty")+" -");
 							else
-								return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, srv.getConsole());
+								return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, console);
 						}
 							
 					}catch(NumberFormatException e) {}
 					return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, Response.Status.BAD_REQUEST.getDescription());
 				}else if(parms.containsKey("create")) {
 					try {
-						int port = Integer.parseInt(parms.get("create"));
+						int port = parms.get("create").equalsIgnoreCase("auto") ? 0 : Integer.parseInt(parms.get("create"));
 						if(parms.get("template") != null && parms.get("memory") != null && parms.get("autostart") != null && parms.get("desc") != null) {
 							int memory = Integer.parseInt(parms.get("memory"));
 							int i = Server.Create(parms.get("desc"), port, parms.get("template"), memory, Boolean.parseBoolean(parms.get("autostart")));
@@ -273,20 +345,15 @@ public class HTTPD extends NanoHTTPD {
 						if(srv == null)
 							body = "<p>404: Server #"+id+" nicht gefunden.</p><hr><a class=\"btn btn-primary\" href=\"/\">[Zur�ck]</a>";
 						else {
-							Ini ini = srv.getIni();
+							HashMap<String, String> changes = new HashMap<String, String>();
 							for(Entry<String,String> e : parms.entrySet()) {
 								if(parms.containsKey(e.getKey()) && parms.get(e.getKey()) != null && !e.getKey().equalsIgnoreCase("conf") && !e.getKey().equalsIgnoreCase("noscript"))
-									ini.put("Server", e.getKey(), e.getValue());
-							}
-							try {
-								ini.store();
-								Response res = newFixedLengthResponse(Response.Status.REDIRECT, MIME_PLAINTEXT, "conf "+id+"\nSUCCESS");
-								res.addHeader("Location", "/?server="+id+"&config=0&success");
-								return res;
-							} catch (IOException e) {
-								e.printStackTrace();
-								return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, "conf "+id+"\nFAILURE");
+									changes.put(e.getKey(), e.getValue());
 							}
+							srv.updateConfig(changes);
+							Response res = newFixedLengthResponse(Response.Status.REDIRECT, MIME_PLAINTEXT, "conf "+id+"\nSUCCESS");
+							res.addHeader("Location", "/?server="+id+"&config=0&success");
+							return res;
 						}
 					}catch(NumberFormatException e) {
 						return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, Response.Status.BAD_REQUEST.getDescription());
@@ -299,8 +366,11 @@ public class HTTPD extends NanoHTTPD {
 						if(parms.containsKey("desc"))
 							desc = parms.get("desc");
 						
-						if(srv != null && srv.createBackup(desc)) {
+						Server.BackupResult r = srv == null ? Server.BackupResult.FAILED : srv.createBackup(desc);
+						if(r == Server.BackupResult.DONE) {
 							return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, "backup-create "+id+"\nSUCCESS");
+						}else if(r == Server.BackupResult.QUEUED) {
+							return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, "backup-create "+id+"\nQUEUED");
 						}else {
 							return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, "backup-create "+id+"\nFAILURE");
 						}
@@ -311,8 +381,11 @@ public class HTTPD extends NanoHTTPD {
 					try {
 						int id = Integer.parseInt(parms.get("backup-apply"));
 						Server srv = Server.getByID(id);
-						if(srv != null && parms.containsKey("desc") && srv.applyBackup(parms.get("desc"))) {
+						Server.BackupResult r = srv == null || !parms.containsKey("desc") ? Server.BackupResult.FAILED : srv.applyBackup(parms.get("desc"));
+						if(r == Server.BackupResult.DONE) {
 							return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, "backup-apply "+id+"\nSUCCESS");
+						}else if(r == Server.BackupResult.QUEUED) {
+							return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, "backup-apply "+id+"\nQUEUED");
 						}else {
 							return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, "backup-apply "+id+"\nFAILURE");
 						}
@@ -339,12 +412,12 @@ public class HTTPD extends NanoHTTPD {
 						if(srv == null) {
 							body = "<p>404: Server #"+id+" nicht gefunden.</p><hr><a class=\"btn btn-primary\" href=\"/\">[Zur�ck]</a>";
 						}else if(parms.containsKey("config")){
-							Ini ini = srv.getIni();
+							ServerConfig conf = srv.getConfig();
 							String s = "";
-							for(String key : ini.get("Server").keySet()) {
+							for(String key : conf.keySet()) {
 								if(key.equalsIgnoreCase("conf") || key.equalsIgnoreCase("set-conf"))
 									continue;
-								String ss = this.getHtml("server_config_entry").replace("{KEY}", key).replace("{VAL}", ini.get("Server", key));
+								String ss = this.getHtml("server_config_entry").replace("{KEY}", key).replace("{VAL}", conf.get(key));
 								if(key.equalsIgnoreCase("Time-Created") || key.equalsIgnoreCase("Recently-Started"))
 									ss = ss.replace("{RW}", "readonly");
 								else
@@ -431,8 +504,8 @@ public class HTTPD extends NanoHTTPD {
 						}else if(parms.containsKey("backups")){
 							String s = "";
 							for(String ss : srv.getBackups()) {
-								File f = new File(srv.getDir().getPath() + File.separator + "backups");
-								s += this.parseServerPlaceholders(this.getHtml("server_backups_entry").replace("{DATE}", Util.getDate(new Date(f.lastModified()))).replace("{NAME}", ss.replace(".zip", "")).replace("{SIZE}", Util.readableFileSize(f.length())), srv);
+								File f = new File(srv.getDir().getPath() + File.separator + "backups" + File.separator + ss);
+								s += this.parseServerPlaceholders(this.getHtml("server_backups_entry").replace("{DATE}", Util.getDate(new Date(f.lastModified()))).replace("{NAME}", ss.replaceAll("\\.(zip|manifest|snap)$", "")).replace("{SIZE}", Util.readableFileSize(f.length())), srv);
 							}
 							body = this.parseServerPlaceholders(this.getHtml("server_backups"), srv).replace("{S_BACKUPS}", s);
 						}else {
@@ -450,7 +523,7 @@ public class HTTPD extends NanoHTTPD {
 						s += "<option>" + l + "</option>";
 					
 					body = this.getHtml("serverlist").replaceAll("<TEMPLATES/>", s);
-					//body = "<h2>CraftMGR Backend v1.0</h2><small>(c) Dargen_ 2018</small><hr><b>HTTP-Interface Reference</b><p>/?start=[ID]<br>/?=stop=[ID]<br>/?=kill=[ID]<br>/?=delete=[ID]<br>/?=cmd=[ID]&com=[COMMAND]<br>/?=console=[ID]<br>/?=create=[PORT]&template=[TEMPLATE]&memory=[RAM]&autostart=[true/false]&desc=[BESCHREIBUNG..]</p>";
+					//body = "<h2>CraftMGR Backend v1.0</h2><small>(c) Dargen_ 2018</small><hr><b>HTTP-Interface Reference</b><p>/?start=[ID]<br>/?=stop=[ID]<br>/?=kill=[ID]<br>/?=delete=[ID]<br>/?=cmd=[ID]&com=[COMMAND]<br>/?=console=[ID]<br>/?=console=[ID]&since=[SEQ][&wait=[MS]]<br>/?=console-stream=[ID]<br>/?=create=[PORT/auto]&template=[TEMPLATE]&memory=[RAM]&autostart=[true/false]&desc=[BESCHREIBUNG..]</p>";
 				}
 			
 			}
@@ -467,6 +540,16 @@ public class HTTPD extends NanoHTTPD {
         return res;
     }
 
+	/**
+	 * Event streams must not be gzipped, otherwise nothing reaches the browser until the buffer is full.
+	 */
+	@Override
+	protected boolean useGzipWhenAccepted(Response r) {
+		if(MIME_EVENT_STREAM.equals(r.getMimeType()))
+			return false;
+		return super.useGzipWhenAccepted(r);
+	}
+
 	private String getPathToIndex(String[] crumbs, int i) {
 		String ret = "";
 		for(int c = 0; c <= i; c++) {
@@ -626,7 +709,7 @@ public class HTTPD extends NanoHTTPD {
 		s = s.replace("{S_PORT}", srv.getPort()+"");
 		s = s.replace("{S_STATE}", srv.getState().toString());
 		s = s.replace("{S_MEMORY}", srv.getMemory()+"");
-		s = s.replace("{S_DATE_CREATED}", srv.getIni().get("Server", "Time-Created")+"");
+		s = s.replace("{S_DATE_CREATED}", srv.getConfig().get("Time-Created")+"");
 		return s;
 	}
 }